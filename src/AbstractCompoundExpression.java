@@ -1,8 +1,5 @@
-import javafx.geometry.Bounds;
-import javafx.scene.Node;
-import javafx.scene.layout.HBox;
-import javafx.scene.layout.Region;
-
+import java.io.IOException;
+import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -10,20 +7,25 @@ public abstract class AbstractCompoundExpression implements CompoundExpression {
     private List<Expression> children = new ArrayList<>();
     private CompoundExpression parent;
     final private String operation;
-    final private HBox storedNode;
-    private boolean signsUpToDate = false;
-    final private boolean withJavaControls;
+    private boolean ghost = false;
+    private boolean focused = false;
+    /**
+     * The ghosting and focused expressions of the tree; only maintained on the root of a tree.
+     */
+    private Expression ghostExpression;
+    private Expression focusedExpression;
+    private boolean normalized = false;
+    /**
+     * Cached structural hash, valid while hashed is set. A node only has a cached hash if all of its descendants do.
+     */
+    private int hash;
+    private boolean hashed = false;
     /**
      * Given a string representing a mathematical operation (*, +, ()), creates a new compound expression
      * @param operation mathematical operation associated with this abstract
      */
-    AbstractCompoundExpression(String operation, boolean withJavaControls) {
+    AbstractCompoundExpression(String operation) {
         this.operation = operation;
-        this.withJavaControls = withJavaControls;
-        if(withJavaControls)
-            storedNode = new HBox();
-        else
-            storedNode = null;
     }
     /**
      * Adds the specified expression as a child.
@@ -33,80 +35,212 @@ public abstract class AbstractCompoundExpression implements CompoundExpression {
     public void addSubexpression(Expression subexpression) {
         children.add(subexpression);
         subexpression.setParent(this);
-        if(withJavaControls)
-            storedNode.getChildren().add(subexpression.getNode());
-        signsUpToDate = false;
+        markDirty();
+        invalidateHash();
+        //Move any ghost or focus tracked by the subtree up to our root
+        Expression subtreeGhost = subexpression.isGhost() ? subexpression : null;
+        Expression subtreeFocus = subexpression.isFocused() ? subexpression : null;
+        if(subexpression instanceof AbstractCompoundExpression) {
+            final AbstractCompoundExpression compound = (AbstractCompoundExpression) subexpression;
+            if(compound.ghostExpression != null)
+                subtreeGhost = compound.ghostExpression;
+            if(compound.focusedExpression != null)
+                subtreeFocus = compound.focusedExpression;
+            compound.ghostExpression = null;
+            compound.focusedExpression = null;
+        }
+        if(subtreeGhost != null)
+            rootOf(this).ghostExpression = subtreeGhost;
+        if(subtreeFocus != null)
+            rootOf(this).focusedExpression = subtreeFocus;
     }
 
     /**
-     * Get children sub expressions
-     * @return children
+     * Finds the root of the tree containing an expression by following parent pointers.
+     * @param expression any expression
+     * @return the root, or null if the root is not a compound expression (i.e. expression is a lone terminal)
      */
-    public List<Expression> getSubexpressions() {
-        return children;
+    static AbstractCompoundExpression rootOf(Expression expression) {
+        Expression node = expression;
+        while(node.getParent() != null)
+            node = node.getParent();
+        return node instanceof AbstractCompoundExpression ? (AbstractCompoundExpression) node : null;
     }
 
     /**
-     * Returns the expression's parent.
-     *
-     * @return the expression's parent
+     * Updates the ghost pointer kept on the root of expression's tree after its ghost flag changed.
+     * @param expression the expression whose flag changed
+     * @param ghost the new flag
      */
-    public CompoundExpression getParent() {
-        return parent;
+    static void ghostChanged(Expression expression, boolean ghost) {
+        final AbstractCompoundExpression root = rootOf(expression);
+        if(root == null)
+            return;
+        if(ghost)
+            root.ghostExpression = expression;
+        else if(root.ghostExpression == expression)
+            root.ghostExpression = null;
     }
 
     /**
-     * Sets the parent be the specified expression.
-     *
-     * @param parent the CompoundExpression that should be the parent of the target object
+     * Updates the focus pointer kept on the root of expression's tree after its focus flag changed.
+     * @param expression the expression whose flag changed
+     * @param focused the new flag
      */
-    public void setParent(CompoundExpression parent) {
-        this.parent = parent;
+    static void focusChanged(Expression expression, boolean focused) {
+        final AbstractCompoundExpression root = rootOf(expression);
+        if(root == null)
+            return;
+        if(focused)
+            root.focusedExpression = expression;
+        else if(root.focusedExpression == expression)
+            root.focusedExpression = null;
     }
 
     /**
-     * Runs whenever our HBox changes in order to insert signs between symbols or parentheses around the entire thing
+     * Returns a tracked expression if it lies within this subtree.
+     * @param tracked the ghost or focus pointer of our root
+     * @return tracked, or null if it is null or outside this subtree
      */
-    public void addSigns() {
-        if(!withJavaControls)
-            return;
-        if(signsUpToDate)
-            return;
-        final List<Node> children = storedNode.getChildren();
-        if(operation.equals("()")) {
-            children.add(0, new ReferenceLabel("(", null));
-            children.add(new ReferenceLabel(")", null));
+    private Expression withinThis(Expression tracked) {
+        if(getParent() == null)
+            return tracked;
+        for(Expression node = tracked; node != null; node = node.getParent()) {
+            if(node == this)
+                return tracked;
         }
-        for(Expression subExp : getSubexpressions()) {
-            if(subExp instanceof AbstractCompoundExpression) {
-                ((AbstractCompoundExpression) subExp).addSigns();
-            }
-            if(!operation.equals("()")) {
-                final Node nodeForExp = subExp.getNode();
-                int index = children.indexOf(nodeForExp);
-                if (index > 0) {
-                    children.add(index, new ReferenceLabel(operation, null));
-                }
+        return null;
+    }
+
+    /**
+     * Records that this expression (and therefore every ancestor) may need flattening again.
+     * Stops at the first ancestor that is already dirty, since its own ancestors are dirty as well.
+     */
+    void markDirty() {
+        AbstractCompoundExpression node = this;
+        while(node != null && node.normalized) {
+            node.normalized = false;
+            node = node.getParent() instanceof AbstractCompoundExpression ? (AbstractCompoundExpression) node.getParent() : null;
+        }
+    }
+
+    /**
+     * Drops the cached structural hash of this expression and of every ancestor that has one.
+     * Stops at the first ancestor without a cached hash, since its own ancestors cannot have one either.
+     */
+    private void invalidateHash() {
+        AbstractCompoundExpression node = this;
+        while(node != null && node.hashed) {
+            node.hashed = false;
+            node = node.getParent() instanceof AbstractCompoundExpression ? (AbstractCompoundExpression) node.getParent() : null;
+        }
+    }
+
+    /**
+     * Adds a child that may be shared with other trees, as in a hash-consed tree built by an ExpressionInterner.
+     * The child's parent is only set if it has none, so a shared child keeps its first parent.
+     * @param subexpression the child expression to add
+     */
+    void addSharedSubexpression(Expression subexpression) {
+        children.add(subexpression);
+        if(subexpression.getParent() == null)
+            subexpression.setParent(this);
+        markDirty();
+        invalidateHash();
+    }
+
+    /**
+     * Returns the index of a child by identity; structurally equal siblings are told apart.
+     * @param subexpression the child to find
+     * @return its index among the subexpressions, or -1 if it is not a child of this expression
+     */
+    public int indexOfSubexpression(Expression subexpression) {
+        for(int i = 0; i < children.size(); i++) {
+            if(children.get(i) == subexpression)
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Compares two trees structurally: the same kind of expression with equal children in the same order.
+     * Cached hashes make most unequal trees cheap to tell apart.
+     * @param other the object to compare with
+     * @return true if other is a structurally equal expression
+     */
+    @Override
+    public boolean equals(Object other) {
+        if(this == other)
+            return true;
+        if(other == null || other.getClass() != getClass())
+            return false;
+        final AbstractCompoundExpression that = (AbstractCompoundExpression) other;
+        if(children.size() != that.children.size() || hashCode() != that.hashCode())
+            return false;
+        for(int i = 0; i < children.size(); i++) {
+            if(!children.get(i).equals(that.children.get(i)))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the structural hash of this tree, computed once and cached until the subtree changes.
+     * @return hash of the operation and of the children in order
+     */
+    @Override
+    public int hashCode() {
+        if(!hashed) {
+            int h = operation.hashCode();
+            for(Expression child : children) {
+                h = 31 * h + child.hashCode();
             }
+            hash = h;
+            hashed = true;
         }
-        signsUpToDate = true;
+        return hash;
     }
 
     /**
-     * Calculates the scene-relative bounds of this expression.
-     * @return scene-relative bounds
+     * Returns whether this subtree is known to be flattened already, i.e. flatten() would not change it.
+     * @return true if flatten() is a no-op on this subtree
      */
-    public Bounds computeBounds() {
-        if(!withJavaControls)
-            return null;
-        return this.getNode().localToScene(this.getNode().getBoundsInLocal());
+    public boolean isNormalized() {
+        return normalized;
+    }
+
+    /**
+     * Get children sub expressions
+     * @return children
+     */
+    public List<Expression> getSubexpressions() {
+        return children;
     }
+
     /**
-     * Returns the JavaFX node associated with this expression.
-     * @return the JavaFX node associated with this expression.
+     * Returns the mathematical operation (*, +, ()) of this expression.
+     * @return the operation
      */
-    public Node getNode() {
-        return storedNode;
+    public String getOperation() {
+        return operation;
+    }
+
+    /**
+     * Returns the expression's parent.
+     *
+     * @return the expression's parent
+     */
+    public CompoundExpression getParent() {
+        return parent;
+    }
+
+    /**
+     * Sets the parent be the specified expression.
+     *
+     * @param parent the CompoundExpression that should be the parent of the target object
+     */
+    public void setParent(CompoundExpression parent) {
+        this.parent = parent;
     }
 
     /**
@@ -115,32 +249,42 @@ public abstract class AbstractCompoundExpression implements CompoundExpression {
      * or additive expression x whose first or last
      * child c is of the same type as x, the children of c will be added to x, and
      * c itself will be removed. This method modifies the expression itself.
+     * Subtrees that have not changed since they were last flattened are skipped.
      */
     public void flatten() {
+        if(normalized)
+            return;
         final List<Expression> newChildren = new ArrayList<>();
-        if(withJavaControls)
-            storedNode.getChildren().clear();
+        if(mergeInto(newChildren, this))
+            invalidateHash();
+        children = newChildren;
+        normalized = true;
+    }
+
+    /**
+     * Appends the flattened children of this expression to the children of target, descending into children of
+     * the same type as target instead of flattening them first. A chain of nested sums or products is thereby merged
+     * in one pass rather than copied once per level.
+     * @param newChildren the new children of target
+     * @param target the expression being flattened
+     * @return true if any child was merged into target
+     */
+    private boolean mergeInto(List<Expression> newChildren, AbstractCompoundExpression target) {
+        boolean merged = false;
         for(Expression child : children) {
-            //Flatten ahead first
-            child.flatten();
             //Is this child also the same operation as we are?
-            if(child.getClass() == this.getClass()) {
-                //Merge + adjust new parent
-                final AbstractCompoundExpression compoundChild = (AbstractCompoundExpression) child;
-                for(Expression subChild : compoundChild.getSubexpressions()) {
-                    newChildren.add(subChild);
-                    subChild.setParent(this);
-                    if(withJavaControls)
-                        storedNode.getChildren().add(subChild.getNode());
-                }
+            if(child.getClass() == target.getClass()) {
+                merged = true;
+                ((AbstractCompoundExpression) child).mergeInto(newChildren, target);
             } else {
+                //Flatten ahead first
+                child.flatten();
                 newChildren.add(child);
-                if(withJavaControls)
-                    storedNode.getChildren().add(child.getNode());
+                if(this != target)
+                    child.setParent(target);
             }
         }
-        children = newChildren;
-        signsUpToDate = false;
+        return merged;
     }
 
     /**
@@ -160,8 +304,7 @@ public abstract class AbstractCompoundExpression implements CompoundExpression {
         for(Expression child : children) {
             clone.addSubexpression(child.deepCopy());
         }
-
-        clone.addSigns();
+        clone.normalized = normalized;
         return clone;
     }
 
@@ -169,77 +312,88 @@ public abstract class AbstractCompoundExpression implements CompoundExpression {
      * Creates a String representation by recursively printing out (using indentation) the
      * tree represented by this expression, starting at the specified indentation level.
      *
-     * @param stringBuilder the StringBuilder to use for building the String representation
-     * @param indentLevel   the indentation level (number of tabs from the left margin) at which to start
+     * @param out         the destination of the String representation
+     * @param indentLevel the indentation level (number of tabs from the left margin) at which to start
+     * @throws IOException if out cannot be written
      */
-    public void convertToString(StringBuilder stringBuilder, int indentLevel) {
-        Expression.indent(stringBuilder, indentLevel);
-        stringBuilder.append(operation).append("\n");
+    public void convertToString(Appendable out, int indentLevel) throws IOException {
+        Expression.indent(out, indentLevel);
+        out.append(operation).append('\n');
         for(Expression child : children) {
-            child.convertToString(stringBuilder, indentLevel+1);
+            child.convertToString(out, indentLevel+1);
         }
     }
 
     /**
-     * Determines the currently focused Expression by searching inside of this CompoundExpression.
+     * Set this expression to be "ghosting".
+     * @param ghost true if ghosting should be enabled
+     */
+    public void setGhost(boolean ghost) {
+        this.ghost = ghost;
+        ghostChanged(this, ghost);
+    }
+
+    /**
+     * Returns whether this expression is "ghosting".
+     * @return true if ghosting
+     */
+    public boolean isGhost() {
+        return ghost;
+    }
+
+    /**
+     * Set this expression to be the focused expression.
+     * @param focused true if this expression should be focused
+     */
+    public void setFocused(boolean focused) {
+        this.focused = focused;
+        focusChanged(this, focused);
+    }
+
+    /**
+     * Returns whether this expression is the focused expression.
+     * @return true if focused
+     */
+    public boolean isFocused() {
+        return focused;
+    }
+
+    /**
+     * Determines the currently focused Expression inside of this CompoundExpression.
+     * Constant time on the root of a tree, which tracks its focused expression.
      * @return focused Expression
      */
     public Expression findFocus() {
-        final Region self = (Region)getNode();
-        if(self.getBorder() != Expression.NO_BORDER) {
-            return this;
-        }
-        for(Expression child : children) {
-            final Node c_node = child.getNode();
-            final Region c_region = (Region) c_node;
-            if(c_region.getBorder() != Expression.NO_BORDER)
-                return child;
-            if(child instanceof AbstractCompoundExpression) {
-                final AbstractCompoundExpression cast_child = (AbstractCompoundExpression)child;
-                final Expression searchRecursively = cast_child.findFocus();
-                if(searchRecursively != null)
-                    return searchRecursively;
-            }
-        }
-        return null;
+        final AbstractCompoundExpression root = getParent() == null ? this : rootOf(this);
+        return root == null ? null : withinThis(root.focusedExpression);
     }
 
     /**
-     * See if there's a deeper focus that contains the mouse's position.
-     * @param mouseX Mouse scene-relative X
-     * @param mouseY Mouse scene-relative y
-     * @return A deeper focus if it exists.
+     * Returns how many placements of search exist within its parent, i.e. how many permutations
+     * buildPermutations(search) holds.
+     * @param search an expression somewhere below this expression
+     * @return the number of siblings of search (including itself), or 0 if search cannot be moved within this tree
      */
-    public Expression focusDeeper(double mouseX, double mouseY) {
-        //find child that contains x, y.
-        for(Expression c : children) {
-            Bounds box = c.computeBounds();
-            if(box.contains(mouseX, mouseY)) {
-                return c;
-            }
+    public int getPermutationCount(Expression search) {
+        if(!(search.getParent() instanceof AbstractCompoundExpression))
+            return 0;
+        final AbstractCompoundExpression parent = (AbstractCompoundExpression) search.getParent();
+        for(Expression ancestor = parent; ancestor != this; ancestor = ancestor.getParent()) {
+            if(ancestor == null)
+                return 0;
         }
-        return null;
+        return parent.children.size();
     }
 
     /**
      * Builds each permutation of moving the ghost expression ("search") in its parent.
+     * Permutations are created lazily, the first time each index is requested, and share all untouched
+     * subtrees with this expression (see shareWithPlacement).
      * @param search The ghost expression to move
-     * @return An array of permutations for each possible valid move of Search.
-     */
-    public AbstractCompoundExpression[] buildPermutations(Expression search) {
-        final ArrayList<AbstractCompoundExpression> permutations = new ArrayList<>();
-        int placementPerm = -1;
-        while(true) {
-            placementPerm++;
-            AbstractCompoundExpression thisPermutation;
-            try {
-                thisPermutation = (AbstractCompoundExpression)deepCopyWithPlacement(placementPerm, search);
-                permutations.add(thisPermutation);
-            } catch (NoMoreCombinationsException e) { break; }
-        }
-        final AbstractCompoundExpression[] permutationResult = new AbstractCompoundExpression[permutations.size()];
-        permutations.toArray(permutationResult);
-        return permutationResult;
+     * @return A list of permutations for each possible valid move of Search, indexed by placement.
+     */
+    public List<AbstractCompoundExpression> buildPermutations(Expression search) {
+        return new PermutationList(this, search, getPermutationCount(search));
     }
 
     /**
@@ -251,16 +405,14 @@ public abstract class AbstractCompoundExpression implements CompoundExpression {
      */
     public Expression deepCopyWithPlacement(int placement, Expression search) throws NoMoreCombinationsException {
         final AbstractCompoundExpression clone = createSelf();
-        if(withJavaControls) {
-            final HBox clonedNode = (HBox) clone.getNode();
-            clonedNode.setBorder(((HBox) getNode()).getBorder());
-        }
+        clone.setFocused(focused);
         final List<Expression> reorderedChildren = new ArrayList<>(children);
-        if(children.contains(search)) {
+        final int searchIndex = indexOfSubexpression(search);
+        if(searchIndex >= 0) {
             if(placement >= children.size())
                 throw new NoMoreCombinationsException("No more combinations remain!"); //Will be caught by permutations array assembler
             //Move our clone of "search" into the correct slot
-            reorderedChildren.remove(search);
+            reorderedChildren.remove(searchIndex);
             reorderedChildren.add(placement, search);
         }
         for(Expression child : reorderedChildren) {
@@ -268,25 +420,115 @@ public abstract class AbstractCompoundExpression implements CompoundExpression {
             clone.addSubexpression(deepcopy);
             if(child == search) deepcopy.setGhost(true);
         }
-        clone.addSigns();
+        //Reordering siblings cannot create anything new to flatten
+        clone.normalized = normalized;
         return clone;
     }
 
     /**
-     * Recursively scans for a ghosting expression.
+     * Copies this expression with a searched element moved in its parent's subexpression list, sharing every subtree
+     * the move does not touch: only search's parent and its ancestors up to this expression are new objects.
+     * Search itself is shared too, so it is only recorded as the copy's ghost (see findGhost) and its own ghost flag
+     * is left alone; this tree is not modified at all.
+     * Shared subtrees keep their parent pointers into this tree until adoptSubexpressions() is called on the copy.
+     * @param placement An index to move the search element to in its parent
+     * @param search A search element somewhere below this expression
+     * @return A copy with the "search" element as the placement-th child of its parent.
+     * @throws NoMoreCombinationsException if there is no possible arrangement given a placement value
+     */
+    public AbstractCompoundExpression shareWithPlacement(int placement, Expression search) throws NoMoreCombinationsException {
+        if(!(search.getParent() instanceof AbstractCompoundExpression))
+            throw new NoMoreCombinationsException("Expression has no parent to move within!");
+        AbstractCompoundExpression original = (AbstractCompoundExpression) search.getParent();
+        if(placement >= original.children.size())
+            throw new NoMoreCombinationsException("No more combinations remain!");
+        final List<Expression> reorderedChildren = new ArrayList<>(original.children);
+        reorderedChildren.remove(original.indexOfSubexpression(search));
+        reorderedChildren.add(placement, search);
+        AbstractCompoundExpression copy = original.createSelf();
+        copy.children.addAll(reorderedChildren);
+        copy.focused = original.focused;
+        copy.normalized = original.normalized;
+        Expression focusCopy = focusedExpression == original ? copy : focusedExpression;
+        //Rebuild the path up to this expression, sharing every sibling along the way
+        while(original != this) {
+            if(!(original.getParent() instanceof AbstractCompoundExpression))
+                throw new NoMoreCombinationsException("Expression is not part of this tree!");
+            final AbstractCompoundExpression originalParent = (AbstractCompoundExpression) original.getParent();
+            final AbstractCompoundExpression parentCopy = originalParent.createSelf();
+            for(Expression child : originalParent.children) {
+                if(child == original)
+                    parentCopy.addSubexpression(copy);
+                else
+                    parentCopy.children.add(child);
+            }
+            parentCopy.focused = originalParent.focused;
+            parentCopy.normalized = originalParent.normalized;
+            if(focusedExpression == originalParent)
+                focusCopy = parentCopy;
+            original = originalParent;
+            copy = parentCopy;
+        }
+        copy.ghostExpression = search;
+        copy.focusedExpression = focusCopy;
+        return copy;
+    }
+
+    /**
+     * Points the parent of every subexpression at the expression that now holds it, after this tree was built
+     * with shareWithPlacement. Only nodes rebuilt by the permutation are descended into, since shared subtrees are
+     * internally consistent already. The tree the subtrees were shared with must not be used afterwards.
+     */
+    public void adoptSubexpressions() {
+        for(Expression child : children) {
+            if(child.getParent() != this)
+                child.setParent(this);
+            else if(child instanceof AbstractCompoundExpression)
+                ((AbstractCompoundExpression) child).adoptSubexpressions();
+        }
+    }
+
+    /**
+     * Finds the ghosting expression inside of this CompoundExpression.
+     * Constant time on the root of a tree, which tracks its ghosting expression.
      * @return the ghosting Expression
      */
     public Expression findGhost() {
-        //Find our ghosting expression in here ...
-        if(!withJavaControls)
-            return null;
-        if(storedNode.getOpacity() == 0.5)
-            return this;
-        for(Expression c : children) {
-            Expression ghost = c.findGhost();
-            if(ghost != null)
-                return ghost;
+        final AbstractCompoundExpression root = getParent() == null ? this : rootOf(this);
+        return root == null ? null : withinThis(root.ghostExpression);
+    }
+
+    /**
+     * Read-only list whose k-th element is the permutation placing search at index k, built on first access.
+     * Reading the list never modifies the tree it was built from: every element, including the one leaving search
+     * in place, is a separate shared copy that records search as its own ghost.
+     */
+    private static class PermutationList extends AbstractList<AbstractCompoundExpression> {
+        final private AbstractCompoundExpression root;
+        final private Expression search;
+        final private AbstractCompoundExpression[] permutations;
+
+        PermutationList(AbstractCompoundExpression root, Expression search, int count) {
+            this.root = root;
+            this.search = search;
+            this.permutations = new AbstractCompoundExpression[count];
+        }
+
+        @Override
+        public AbstractCompoundExpression get(int placement) {
+            if(permutations[placement] == null) {
+                try {
+                    permutations[placement] = root.shareWithPlacement(placement, search);
+                } catch (NoMoreCombinationsException e) {
+                    throw new IndexOutOfBoundsException(e.getMessage());
+                }
+            }
+            return permutations[placement];
+        }
+
+        @Override
+        public int size() {
+            return permutations.length;
         }
-        return null;
     }
 }
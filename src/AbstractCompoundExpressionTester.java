@@ -0,0 +1,263 @@
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.List;
+
+/**
+ * Checks the tree operations of AbstractCompoundExpression.
+ */
+public class AbstractCompoundExpressionTester {
+	private AbstractCompoundExpression _root;
+
+	@Before
+	/**
+	 * Parses the example expression used by the editor
+	 */
+	public void setUp () throws ExpressionParseException {
+		_root = (AbstractCompoundExpression) new SimpleExpressionParser().parse("2*x+3*y+4*z+(7+6*z)", false);
+	}
+
+	@Test
+	/**
+	 * Verifies that a parsed tree is normalized and that an edit only dirties the path to the root.
+	 */
+	public void testIncrementalFlatten () {
+		assertTrue(_root.isNormalized());
+		final AbstractCompoundExpression product = (AbstractCompoundExpression) _root.getSubexpressions().get(0);
+		final AbstractCompoundExpression untouched = (AbstractCompoundExpression) _root.getSubexpressions().get(1);
+		final AbstractCompoundExpression nested = new MultiplicativeCompoundExpression();
+		nested.addSubexpression(new TerminalExpression("5"));
+		nested.addSubexpression(new TerminalExpression("w"));
+		product.addSubexpression(nested);
+		assertFalse(product.isNormalized());
+		assertFalse(_root.isNormalized());
+		assertTrue(untouched.isNormalized());
+
+		_root.flatten();
+		assertTrue(_root.isNormalized());
+		assertEquals(4, product.getSubexpressions().size());
+		assertSame(product, product.getSubexpressions().get(3).getParent());
+	}
+
+	@Test
+	/**
+	 * Verifies that long left-nested chains, as the grammar builds them, flatten into the parsed tree in one pass
+	 * with every parent pointer updated.
+	 */
+	public void testFlattenChain () throws ExpressionParseException {
+		final StringBuilder text = new StringBuilder("a");
+		Expression chain = new TerminalExpression("a");
+		for (int i = 1; i < 2000; i++) {
+			final AbstractCompoundExpression sum = new AdditiveCompoundExpression();
+			sum.addSubexpression(chain);
+			if (i % 2 == 0) {
+				final AbstractCompoundExpression product = new MultiplicativeCompoundExpression();
+				final AbstractCompoundExpression inner = new MultiplicativeCompoundExpression();
+				inner.addSubexpression(new TerminalExpression("x"));
+				inner.addSubexpression(new TerminalExpression(Integer.toString(i)));
+				product.addSubexpression(inner);
+				product.addSubexpression(new TerminalExpression("y"));
+				sum.addSubexpression(product);
+				text.append("+x*").append(i).append("*y");
+			} else {
+				sum.addSubexpression(new TerminalExpression(Integer.toString(i)));
+				text.append('+').append(i);
+			}
+			chain = sum;
+		}
+		chain.flatten();
+		final Expression parsed = new TokenizingExpressionParser().parse(text.toString(), false);
+		assertEquals(parsed, chain);
+		assertEquals(parsed.hashCode(), chain.hashCode());
+		assertEquals(2000, ((AbstractCompoundExpression) chain).getSubexpressions().size());
+		assertParents(chain);
+
+		final Expression random = new TokenizingExpressionParser().parse(new ExpressionGenerator(8).random(6, 5), false);
+		final Expression unflattened = ExpressionGenerator.unflattened(random);
+		unflattened.flatten();
+		assertEquals(random, unflattened);
+		assertEquals(random.convertToString(0), unflattened.convertToString(0));
+		assertParents(unflattened);
+	}
+
+	/**
+	 * Asserts that every expression in a tree is normalized and is the parent of its subexpressions.
+	 * @param expression the root of the tree
+	 */
+	private static void assertParents (Expression expression) {
+		if (!(expression instanceof AbstractCompoundExpression))
+			return;
+		final AbstractCompoundExpression compound = (AbstractCompoundExpression) expression;
+		assertTrue(compound.isNormalized());
+		for (Expression child : compound.getSubexpressions()) {
+			assertSame(compound, child.getParent());
+			assertNotSame(compound.getClass(), child.getClass());
+			assertParents(child);
+		}
+	}
+
+	@Test
+	/**
+	 * Verifies that a shared permutation matches a full copy, only rebuilds the moved element's path,
+	 * and has consistent parents once adopted.
+	 */
+	public void testSharedPermutation () throws NoMoreCombinationsException {
+		final AbstractCompoundExpression parenthetical = (AbstractCompoundExpression) _root.getSubexpressions().get(3);
+		final AbstractCompoundExpression sum = (AbstractCompoundExpression) parenthetical.getSubexpressions().get(0);
+		final Expression seven = sum.getSubexpressions().get(0);
+		final String fullCopy = _root.deepCopyWithPlacement(1, seven).convertToString(0);
+
+		final AbstractCompoundExpression shared = _root.shareWithPlacement(1, seven);
+		assertEquals(fullCopy, shared.convertToString(0));
+		assertSame(_root.getSubexpressions().get(0), shared.getSubexpressions().get(0));
+		assertNotSame(parenthetical, shared.getSubexpressions().get(3));
+		assertSame(seven, shared.findGhost());
+		assertFalse(seven.isGhost());
+		assertNull(_root.findGhost());
+		assertEquals(2, _root.buildPermutations(seven).size());
+
+		shared.adoptSubexpressions();
+		final AbstractCompoundExpression sharedSum = (AbstractCompoundExpression) ((AbstractCompoundExpression) shared.getSubexpressions().get(3)).getSubexpressions().get(0);
+		assertSame(sharedSum, seven.getParent());
+		assertSame(shared, shared.getSubexpressions().get(0).getParent());
+	}
+
+	@Test
+	/**
+	 * Verifies that the permutation count is known up front and that permutations are only built when requested.
+	 */
+	public void testLazyPermutations () {
+		final Expression first = _root.getSubexpressions().get(0);
+		assertEquals(4, _root.getPermutationCount(first));
+		assertEquals(0, _root.getPermutationCount(_root));
+		assertEquals(0, _root.getPermutationCount(new TerminalExpression("q")));
+
+		final List<AbstractCompoundExpression> permutations = _root.buildPermutations(first);
+		assertEquals(4, permutations.size());
+		assertFalse(first.isGhost());
+		assertSame(first, permutations.get(2).getSubexpressions().get(2));
+		assertSame(permutations.get(2), permutations.get(2));
+	}
+
+	@Test
+	/**
+	 * Verifies that the root tracks its focused and ghosting expressions as flags change and subtrees are attached.
+	 */
+	public void testTrackedFocusAndGhost () {
+		final AbstractCompoundExpression product = (AbstractCompoundExpression) _root.getSubexpressions().get(0);
+		final Expression x = product.getSubexpressions().get(1);
+		assertNull(_root.findFocus());
+		x.setFocused(true);
+		assertSame(x, _root.findFocus());
+		assertSame(x, product.findFocus());
+		assertNull(((AbstractCompoundExpression) _root.getSubexpressions().get(1)).findFocus());
+		x.setFocused(false);
+		assertNull(_root.findFocus());
+
+		final AbstractCompoundExpression detached = new MultiplicativeCompoundExpression();
+		final Expression w = new TerminalExpression("w");
+		detached.addSubexpression(w);
+		w.setGhost(true);
+		assertSame(w, detached.findGhost());
+		product.addSubexpression(detached);
+		assertSame(w, _root.findGhost());
+		assertSame(w, detached.findGhost());
+
+		assertNull(_root.deepCopy().findGhost());
+	}
+
+	@Test
+	/**
+	 * Verifies that copied and shared permutations track their own focused and ghosting expressions.
+	 */
+	public void testPermutationTracking () throws NoMoreCombinationsException {
+		final AbstractCompoundExpression parenthetical = (AbstractCompoundExpression) _root.getSubexpressions().get(3);
+		final AbstractCompoundExpression sum = (AbstractCompoundExpression) parenthetical.getSubexpressions().get(0);
+		final Expression seven = sum.getSubexpressions().get(0);
+		seven.setFocused(true);
+
+		final AbstractCompoundExpression copied = (AbstractCompoundExpression) _root.deepCopyWithPlacement(1, seven);
+		assertNotSame(seven, copied.findGhost());
+		assertSame(copied.findGhost(), copied.findFocus());
+		assertSame(copied, AbstractCompoundExpression.rootOf(copied.findGhost()));
+
+		final AbstractCompoundExpression shared = _root.shareWithPlacement(0, seven);
+		assertSame(seven, shared.findGhost());
+		assertSame(seven, shared.findFocus());
+		assertSame(seven, _root.findFocus());
+	}
+
+	@Test
+	/**
+	 * Verifies that streaming a tree gives the same text as building its String, including past one run of tabs.
+	 */
+	public void testStreamedString () throws ExpressionParseException, IOException {
+		final StringBuilder nested = new StringBuilder("x");
+		for (int i = 0; i < 100; i++)
+			nested.insert(0, "(1+").append(')');
+		final Expression deep = new TokenizingExpressionParser().parse(nested.toString(), false);
+		for (Expression expression : new Expression[] { _root, deep }) {
+			final StringWriter writer = new StringWriter();
+			expression.convertToString(writer, 2);
+			assertEquals(expression.convertToString(2), writer.toString());
+		}
+		assertTrue(deep.convertToString(0).contains("\n" + new String(new char[200]).replace('\0', '\t') + "x\n"));
+	}
+
+	@Test
+	/**
+	 * Verifies structural equality and that cached hashes follow edits.
+	 */
+	public void testStructuralEquality () throws ExpressionParseException {
+		final Expression same = new TokenizingExpressionParser().parse("2*x + 3*y + 4*z + (7 + 6*z)", false);
+		assertEquals(_root, same);
+		assertEquals(_root.hashCode(), same.hashCode());
+		assertNotEquals(_root, new TokenizingExpressionParser().parse("2*x+3*y+4*z+(7+6*y)", false));
+
+		final int before = _root.hashCode();
+		final AbstractCompoundExpression sum = (AbstractCompoundExpression) ((AbstractCompoundExpression) _root.getSubexpressions().get(3)).getSubexpressions().get(0);
+		sum.addSubexpression(new TerminalExpression("w"));
+		assertNotEquals(before, _root.hashCode());
+		assertNotEquals(_root, same);
+		assertEquals(_root, _root.deepCopy());
+	}
+
+	@Test
+	/**
+	 * Verifies that the permutation leaving an expression in place is a copy, that reading permutations leaves the
+	 * tree untouched, and that equal siblings are told apart by identity.
+	 */
+	public void testPermutationAtOriginalIndex () throws ExpressionParseException {
+		final AbstractCompoundExpression twins = (AbstractCompoundExpression) new TokenizingExpressionParser().parse("x+x+y", false);
+		final Expression second = twins.getSubexpressions().get(1);
+		assertEquals(1, twins.indexOfSubexpression(second));
+		final List<AbstractCompoundExpression> permutations = twins.buildPermutations(second);
+		assertNotSame(twins, permutations.get(1));
+		assertEquals(twins, permutations.get(1));
+		assertSame(second, permutations.get(1).findGhost());
+		assertNull(twins.findGhost());
+		assertFalse(second.isGhost());
+		assertSame(second, permutations.get(0).getSubexpressions().get(0));
+		assertEquals(permutations.get(0), permutations.get(1));
+		assertNotEquals(permutations.get(1), permutations.get(2));
+	}
+
+	@Test
+	/**
+	 * Verifies that interning shares equal subtrees without changing the tree.
+	 */
+	public void testInterning () throws ExpressionParseException {
+		final Expression expression = new TokenizingExpressionParser().parse("x*y + 2 + x*y + (x*y)", false);
+		final ExpressionInterner interner = new ExpressionInterner();
+		final AbstractCompoundExpression interned = (AbstractCompoundExpression) interner.intern(expression);
+		assertEquals(expression, interned);
+		assertEquals(expression.convertToString(0), interned.convertToString(0));
+		assertSame(interned.getSubexpressions().get(0), interned.getSubexpressions().get(2));
+		assertSame(interned.getSubexpressions().get(0), ((AbstractCompoundExpression) interned.getSubexpressions().get(3)).getSubexpressions().get(0));
+		// x, y, x*y, 2, (x*y) and the sum
+		assertEquals(6, interner.size());
+		assertSame(interned, interner.intern(expression.deepCopy()));
+	}
+}
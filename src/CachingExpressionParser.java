@@ -0,0 +1,125 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * An ExpressionParser that remembers the trees another parser built, so parsing the same text again is a lookup.
+ * Spaces are ignored everywhere in the grammar, so inputs are keyed with their spaces removed: "1 + x" and "1+x"
+ * share an entry. The cache holds at most a fixed number of trees and evicts the least recently used one first.
+ * Cached trees are never handed out; every parse returns a fresh deepCopy the caller is free to edit.
+ * Inputs that fail to parse are not cached.
+ */
+public class CachingExpressionParser implements ExpressionParser {
+	final private ExpressionParser delegate;
+	final private Map<String, Expression> cache;
+	private long hits = 0;
+	private long misses = 0;
+
+	/**
+	 * Creates a cache in front of a parser.
+	 * @param delegate the parser to use on a cache miss
+	 * @param capacity maximum number of trees to keep
+	 */
+	public CachingExpressionParser(ExpressionParser delegate, int capacity) {
+		this.delegate = delegate;
+		this.cache = new LinkedHashMap<String, Expression>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Expression> eldest) {
+				return size() > capacity;
+			}
+		};
+	}
+
+	/**
+	 * Attempts to create an expression tree -- flattened as much as possible -- from the specified String.
+	 * Throws a ExpressionParseException if the specified string cannot be parsed.
+	 * @param str the string to parse into an expression tree
+	 * @param withJavaFXControls retained for compatibility; the tree is always headless (render it with an ExpressionView)
+	 * @return the Expression object representing the parsed expression tree
+	 */
+	public Expression parse (String str, boolean withJavaFXControls) throws ExpressionParseException {
+		return parse(str, 0, str.length(), withJavaFXControls);
+	}
+
+	/**
+	 * Parses the [start, end) span of a character sequence, or copies the cached tree for the same text.
+	 * @param input the character sequence containing the expression
+	 * @param start start offset of the expression (inclusive)
+	 * @param end end offset of the expression (exclusive)
+	 * @param withJavaFXControls retained for compatibility; the tree is always headless (render it with an ExpressionView)
+	 * @return the Expression object representing the parsed expression tree
+	 */
+	public Expression parse (CharSequence input, int start, int end, boolean withJavaFXControls) throws ExpressionParseException {
+		final String key = stripSpaces(input, start, end);
+		synchronized (cache) {
+			final Expression cached = cache.get(key);
+			if (cached != null) {
+				hits++;
+				return cached.deepCopy();
+			}
+			misses++;
+		}
+		final Expression expression = delegate.parse(input, start, end, withJavaFXControls);
+		synchronized (cache) {
+			cache.put(key, expression.deepCopy());
+		}
+		return expression;
+	}
+
+	/**
+	 * Builds the cache key of a span: its text without spaces, which are insignificant everywhere in the grammar,
+	 * so inputs that differ only in spacing share one entry.
+	 * @param input the character sequence containing the expression
+	 * @param start start offset of the expression (inclusive)
+	 * @param end end offset of the expression (exclusive)
+	 * @return the span's text with every space removed
+	 */
+	private static String stripSpaces(CharSequence input, int start, int end) {
+		final StringBuilder builder = new StringBuilder(end - start);
+		for (int i = start; i < end; i++) {
+			final char c = input.charAt(i);
+			if (c != ' ')
+				builder.append(c);
+		}
+		return builder.toString();
+	}
+
+	/**
+	 * Returns how many parses were answered from the cache.
+	 * @return cache hits
+	 */
+	public long getHits() {
+		synchronized (cache) {
+			return hits;
+		}
+	}
+
+	/**
+	 * Returns how many parses had to run the underlying parser.
+	 * @return cache misses
+	 */
+	public long getMisses() {
+		synchronized (cache) {
+			return misses;
+		}
+	}
+
+	/**
+	 * Returns the fraction of parses answered from the cache.
+	 * @return hits / (hits + misses), or 0 before the first parse
+	 */
+	public double getHitRate() {
+		synchronized (cache) {
+			return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+		}
+	}
+
+	/**
+	 * Returns the number of trees currently cached.
+	 * @return the cache size
+	 */
+	public int size() {
+		synchronized (cache) {
+			return cache.size();
+		}
+	}
+}
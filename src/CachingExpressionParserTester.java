@@ -0,0 +1,64 @@
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ * Checks that CachingExpressionParser returns the same trees as the parser it wraps.
+ */
+public class CachingExpressionParserTester {
+	@Test
+	/**
+	 * Verifies that inputs differing only in spaces share an entry and that hits match a fresh parse.
+	 */
+	public void testHits () throws ExpressionParseException {
+		final CachingExpressionParser parser = new CachingExpressionParser(new SimpleExpressionParser(), 8);
+		final String expected = new SimpleExpressionParser().parse("2*x+3*y+4*z+(7+6*z)", false).convertToString(0);
+		assertEquals(expected, parser.parse("2*x+3*y+4*z+(7+6*z)", false).convertToString(0));
+		assertEquals(expected, parser.parse("2 * x + 3*y+4*z + ( 7+6*z )", false).convertToString(0));
+		assertEquals(expected, parser.parse("[2*x+3*y+4*z+(7+6*z)]", 1, 20, false).convertToString(0));
+		assertEquals(1, parser.getMisses());
+		assertEquals(2, parser.getHits());
+		assertEquals(2.0 / 3, parser.getHitRate(), 1e-9);
+	}
+
+	@Test
+	/**
+	 * Verifies that editing a returned tree does not change what later parses return.
+	 */
+	public void testCopies () throws ExpressionParseException {
+		final CachingExpressionParser parser = new CachingExpressionParser(new SimpleExpressionParser(), 8);
+		final AbstractCompoundExpression first = (AbstractCompoundExpression) parser.parse("a+b*c", false);
+		first.addSubexpression(new TerminalExpression("d"));
+		final AbstractCompoundExpression second = (AbstractCompoundExpression) parser.parse("a+b*c", false);
+		second.addSubexpression(new TerminalExpression("e"));
+		assertNotSame(first, second);
+		assertEquals("+\n\ta\n\t*\n\t\tb\n\t\tc\n", parser.parse("a+b*c", false).convertToString(0));
+	}
+
+	@Test
+	/**
+	 * Verifies that the least recently used entry is evicted and that failures are not cached.
+	 */
+	public void testEvictionAndErrors () throws ExpressionParseException {
+		final CachingExpressionParser parser = new CachingExpressionParser(new SimpleExpressionParser(), 2);
+		parser.parse("a", false);
+		parser.parse("b", false);
+		parser.parse("a", false);
+		parser.parse("c", false);
+		assertEquals(2, parser.size());
+		assertEquals(3, parser.getMisses());
+		parser.parse("a", false);
+		assertEquals(2, parser.getHits());
+		parser.parse("b", false);
+		assertEquals(4, parser.getMisses());
+
+		for (int i = 0; i < 2; i++) {
+			try {
+				parser.parse("1+", false);
+				fail("Expected an ExpressionParseException");
+			} catch (ExpressionParseException expected) {
+			}
+		}
+		assertEquals(6, parser.getMisses());
+		assertEquals(2, parser.size());
+	}
+}
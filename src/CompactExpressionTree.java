@@ -0,0 +1,531 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * An immutable expression tree stored as parallel primitive arrays instead of one object per node.
+ * Nodes are numbered in prefix order, so a node's first child is the next index and its next sibling is found by
+ * skipping its subtree (the descendants of a node are [node + 1, node + subtree size)). Flattening, printing and
+ * traversal run over contiguous arrays; use fromExpression and toExpression to convert to and from the object model.
+ * Trees can be stored with writeTo and loaded with readFrom in a binary format: the bytes "EXT" and a version
+ * byte, the node count, then every node in prefix order as its kind followed by its child count (compound
+ * expressions), its value (NUMBER and VARIABLE) or its length and ISO-8859-1 text (TEXT). Every integer is an
+ * unsigned LEB128 varint. Loading is a single linear scan, over a stream or a (memory-mapped) ByteBuffer.
+ */
+public final class CompactExpressionTree {
+    public static final byte ADDITIVE = 0;
+    public static final byte MULTIPLICATIVE = 1;
+    public static final byte PARENTHETICAL = 2;
+    public static final byte NUMBER = 3;
+    public static final byte VARIABLE = 4;
+    /**
+     * A literal whose text cannot be rebuilt from a long (leading zeros, or too large); its value indexes texts.
+     */
+    public static final byte TEXT = 5;
+
+    private static final byte[] MAGIC = { 'E', 'X', 'T', 1 };
+
+    /**
+     * Most nodes allocated up front when loading; the node count comes from the input, so larger trees grow as
+     * their nodes are actually read
+     */
+    private static final int READ_CAPACITY = 1 << 12;
+
+    final private byte[] kinds;
+    final private int[] childCounts;
+    final private int[] subtreeSizes;
+    final private int[] parents;
+    final private long[] values;
+    final private String[] texts;
+
+    private CompactExpressionTree(byte[] kinds, int[] childCounts, int[] subtreeSizes, int[] parents, long[] values, String[] texts) {
+        this.kinds = kinds;
+        this.childCounts = childCounts;
+        this.subtreeSizes = subtreeSizes;
+        this.parents = parents;
+        this.values = values;
+        this.texts = texts;
+    }
+
+    /**
+     * Encodes an expression tree.
+     * @param expression the root of the tree to encode
+     * @return the compact encoding of the tree
+     */
+    public static CompactExpressionTree fromExpression(Expression expression) {
+        final Builder builder = new Builder(countNodes(expression));
+        builder.add(expression);
+        return builder.build();
+    }
+
+    private static int countNodes(Expression expression) {
+        int count = 1;
+        if (expression instanceof AbstractCompoundExpression) {
+            for (Expression child : ((AbstractCompoundExpression) expression).getSubexpressions()) {
+                count += countNodes(child);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Decodes this tree back into the object model.
+     * @return a new expression tree equal to this one
+     */
+    public Expression toExpression() {
+        return toExpression(0);
+    }
+
+    private Expression toExpression(int node) {
+        switch (kinds[node]) {
+            case NUMBER:
+                return new TerminalExpression(TerminalValue.valueOf(values[node]));
+            case VARIABLE:
+                return new TerminalExpression(TerminalValue.variable((char) values[node]));
+            case TEXT:
+                return new TerminalExpression(texts[(int) values[node]]);
+            default:
+                final AbstractCompoundExpression compound = createCompound(kinds[node]);
+                for (int child = firstChild(node); child >= 0; child = nextSibling(child)) {
+                    compound.addSubexpression(toExpression(child));
+                }
+                return compound;
+        }
+    }
+
+    private static AbstractCompoundExpression createCompound(byte kind) {
+        if (kind == ADDITIVE)
+            return new AdditiveCompoundExpression();
+        if (kind == MULTIPLICATIVE)
+            return new MultiplicativeCompoundExpression();
+        return new ParentheticalCompoundExpression();
+    }
+
+    /**
+     * Returns the number of nodes in the tree.
+     * @return the node count
+     */
+    public int size() {
+        return kinds.length;
+    }
+
+    /**
+     * Returns the kind of a node (ADDITIVE, MULTIPLICATIVE, PARENTHETICAL, NUMBER, VARIABLE or TEXT).
+     * @param node index of the node
+     * @return the node's kind
+     */
+    public byte getKind(int node) {
+        return kinds[node];
+    }
+
+    /**
+     * Returns the number of children of a node.
+     * @param node index of the node
+     * @return the child count, 0 for literals
+     */
+    public int getChildCount(int node) {
+        return childCounts[node];
+    }
+
+    /**
+     * Returns the first child of a node.
+     * @param node index of the node
+     * @return index of the first child, or -1 if the node has none
+     */
+    public int firstChild(int node) {
+        return childCounts[node] > 0 ? node + 1 : -1;
+    }
+
+    /**
+     * Returns the next sibling of a node.
+     * @param node index of the node
+     * @return index of the next sibling, or -1 if the node is the last child of its parent (or the root)
+     */
+    public int nextSibling(int node) {
+        final int parent = parents[node];
+        if (parent < 0)
+            return -1;
+        // The next node in prefix order is our sibling only if it is still inside our parent's subtree
+        final int next = node + subtreeSizes[node];
+        return next < parent + subtreeSizes[parent] ? next : -1;
+    }
+
+    /**
+     * Returns the parent of a node.
+     * @param node index of the node
+     * @return index of the parent, or -1 for the root
+     */
+    public int getParent(int node) {
+        return parents[node];
+    }
+
+    /**
+     * Returns the value of a NUMBER (the number) or VARIABLE (the character) node.
+     * @param node index of the node
+     * @return the literal value
+     */
+    public long getValue(int node) {
+        return values[node];
+    }
+
+    /**
+     * Returns the text of a node as it is printed by convertToString: the operation or the literal.
+     * @param node index of the node
+     * @return the node's text
+     */
+    public String getText(int node) {
+        switch (kinds[node]) {
+            case ADDITIVE:
+                return "+";
+            case MULTIPLICATIVE:
+                return "*";
+            case PARENTHETICAL:
+                return "()";
+            case NUMBER:
+                return Long.toString(values[node]);
+            case VARIABLE:
+                return String.valueOf((char) values[node]);
+            default:
+                return texts[(int) values[node]];
+        }
+    }
+
+    /**
+     * Flattens the tree the same way Expression.flatten does: every compound child of the same kind as its parent
+     * is replaced by its children.
+     * @return a new, flattened tree (this tree is immutable)
+     */
+    public CompactExpressionTree flatten() {
+        final Builder builder = new Builder(kinds.length);
+        flattenInto(builder, 0);
+        return builder.build();
+    }
+
+    private void flattenInto(Builder builder, int node) {
+        if (childCounts[node] == 0) {
+            builder.copyLiteral(kinds[node], values[node], kinds[node] == TEXT ? texts[(int) values[node]] : null);
+            return;
+        }
+        final int slot = builder.open(kinds[node]);
+        builder.close(slot, flattenChildrenInto(builder, node, kinds[node]));
+    }
+
+    private int flattenChildrenInto(Builder builder, int node, byte kind) {
+        int count = 0;
+        for (int child = node + 1, end = node + subtreeSizes[node]; child < end; child += subtreeSizes[child]) {
+            if (kinds[child] == kind && childCounts[child] > 0) {
+                count += flattenChildrenInto(builder, child, kind);
+            } else {
+                flattenInto(builder, child);
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Creates a String representation of the tree in the same format as Expression.convertToString,
+     * in a single pass over the arrays.
+     * @param stringBuilder the StringBuilder to use for building the String representation
+     * @param indentLevel the indentation level (number of tabs from the left margin) at which to start
+     */
+    public void convertToString(StringBuilder stringBuilder, int indentLevel) {
+        try {
+            convertToString((Appendable) stringBuilder, indentLevel);
+        } catch (IOException ioe) {
+            // A StringBuilder never throws
+            throw new UncheckedIOException(ioe);
+        }
+    }
+
+    /**
+     * Writes the same representation as convertToString(StringBuilder, int) line by line, for streaming to a Writer.
+     * @param out the destination of the String representation
+     * @param indentLevel the indentation level (number of tabs from the left margin) at which to start
+     * @throws IOException if out cannot be written
+     */
+    public void convertToString(Appendable out, int indentLevel) throws IOException {
+        final int[] remaining = new int[kinds.length];
+        int depth = 0;
+        for (int node = 0; node < kinds.length; node++) {
+            Expression.indent(out, indentLevel + depth);
+            out.append(getText(node)).append('\n');
+            if (childCounts[node] > 0) {
+                remaining[depth++] = childCounts[node];
+            } else {
+                // A leaf finishes its parent (and possibly its ancestors) once it was the last child
+                while (depth > 0 && --remaining[depth - 1] == 0)
+                    depth--;
+            }
+        }
+    }
+
+    public String convertToString(int indentLevel) {
+        final StringBuilder stringBuilder = new StringBuilder();
+        convertToString(stringBuilder, indentLevel);
+        return stringBuilder.toString();
+    }
+
+    /**
+     * Writes the tree in the binary format. Writes are small, so out should be buffered.
+     * @param out the stream to write to
+     * @throws IOException if out cannot be written
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(MAGIC);
+        writeVarint(out, kinds.length);
+        for (int node = 0; node < kinds.length; node++) {
+            out.write(kinds[node]);
+            if (kinds[node] == TEXT) {
+                final byte[] text = texts[(int) values[node]].getBytes(StandardCharsets.ISO_8859_1);
+                writeVarint(out, text.length);
+                out.write(text);
+            } else {
+                writeVarint(out, childCounts[node] > 0 ? childCounts[node] : values[node]);
+            }
+        }
+    }
+
+    private static void writeVarint(OutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    /**
+     * Loads a tree written by writeTo from a buffer, such as a memory-mapped file, starting at its position.
+     * @param buffer the buffer to read; its position is left just past the tree
+     * @return the tree
+     * @throws IOException if the buffer does not hold a valid tree
+     */
+    public static CompactExpressionTree readFrom(ByteBuffer buffer) throws IOException {
+        try {
+            return read(() -> buffer.get() & 0xFF);
+        } catch (BufferUnderflowException bue) {
+            throw new EOFException("Truncated expression tree");
+        }
+    }
+
+    /**
+     * Loads a tree written by writeTo from a stream. Reads are single bytes, so in should be buffered.
+     * @param in the stream to read
+     * @return the tree
+     * @throws IOException if in cannot be read or does not hold a valid tree
+     */
+    public static CompactExpressionTree readFrom(InputStream in) throws IOException {
+        return read(() -> {
+            final int b = in.read();
+            if (b < 0)
+                throw new EOFException("Truncated expression tree");
+            return b;
+        });
+    }
+
+    private static CompactExpressionTree read(ByteSource source) throws IOException {
+        for (byte expected : MAGIC) {
+            if (source.next() != (expected & 0xFF))
+                throw new IOException("Not an expression tree");
+        }
+        final long size = readVarint(source);
+        if (size < 1 || size > Integer.MAX_VALUE - 8)
+            throw new IOException("Corrupt node count " + size);
+        final Builder builder = new Builder((int) Math.min(size, READ_CAPACITY));
+        //Open compound nodes and how many of their children are still to come
+        int[] openSlots = new int[16];
+        int[] openCounts = new int[16];
+        long[] pending = new long[16];
+        int depth = 0;
+        for (int node = 0; node < size; node++) {
+            //Once the root is complete, there must be nothing left to read
+            if (node > 0 && depth == 0)
+                throw new IOException("Corrupt expression tree: node " + node + " follows the complete root");
+            final int kind = source.next();
+            final long operand = readVarint(source);
+            if (operand < 0)
+                throw new IOException("Corrupt operand at node " + node);
+            if (kind <= PARENTHETICAL) {
+                if (operand < 1 || operand >= size - node || (kind == PARENTHETICAL && operand != 1))
+                    throw new IOException("Corrupt child count at node " + node);
+                if (depth == openSlots.length) {
+                    openSlots = Arrays.copyOf(openSlots, depth * 2);
+                    openCounts = Arrays.copyOf(openCounts, depth * 2);
+                    pending = Arrays.copyOf(pending, depth * 2);
+                }
+                openSlots[depth] = builder.open((byte) kind);
+                openCounts[depth] = (int) operand;
+                pending[depth++] = operand;
+                continue;
+            }
+            if (kind == NUMBER) {
+                builder.copyLiteral(NUMBER, operand, null);
+            } else if (kind == VARIABLE && operand >= 'a' && operand <= 'z') {
+                builder.copyLiteral(VARIABLE, operand, null);
+            } else if (kind == TEXT && operand <= Integer.MAX_VALUE) {
+                //The length comes from the input too, so the text grows as its bytes arrive (ISO-8859-1 maps bytes to chars)
+                final StringBuilder text = new StringBuilder((int) Math.min(operand, 64));
+                for (long i = 0; i < operand; i++) {
+                    text.append((char) source.next());
+                }
+                if (TerminalValue.parse(text, 0, text.length()) == null)
+                    throw new IOException("Corrupt literal at node " + node);
+                builder.copyLiteral(TEXT, 0, text.toString());
+            } else {
+                throw new IOException("Corrupt literal at node " + node);
+            }
+            //A literal completes its parent (and possibly its ancestors) once it was the last child
+            while (depth > 0 && --pending[depth - 1] == 0) {
+                depth--;
+                builder.close(openSlots[depth], openCounts[depth]);
+            }
+        }
+        if (depth != 0)
+            throw new IOException("Corrupt expression tree: " + depth + " unfinished nodes");
+        return builder.build();
+    }
+
+    private static long readVarint(ByteSource source) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            final int b = source.next();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+        throw new IOException("Corrupt varint");
+    }
+
+    /**
+     * Supplies the bytes of an encoded tree one at a time, as values from 0 to 255.
+     */
+    private interface ByteSource {
+        int next() throws IOException;
+    }
+
+    /**
+     * Fills the parallel arrays in prefix order.
+     */
+    private static class Builder {
+        private byte[] kinds;
+        private int[] childCounts;
+        private int[] subtreeSizes;
+        private int[] parents;
+        private long[] values;
+        private String[] texts = new String[0];
+        private int size = 0;
+        private int textCount = 0;
+        private int currentParent = -1;
+
+        Builder(int capacity) {
+            kinds = new byte[capacity];
+            childCounts = new int[capacity];
+            subtreeSizes = new int[capacity];
+            parents = new int[capacity];
+            values = new long[capacity];
+        }
+
+        /**
+         * Adds an expression and all of its subexpressions in prefix order.
+         * @param expression the expression to add
+         */
+        void add(Expression expression) {
+            if (expression instanceof AbstractCompoundExpression) {
+                final AbstractCompoundExpression compound = (AbstractCompoundExpression) expression;
+                final byte kind;
+                if (compound instanceof AdditiveCompoundExpression)
+                    kind = ADDITIVE;
+                else if (compound instanceof MultiplicativeCompoundExpression)
+                    kind = MULTIPLICATIVE;
+                else
+                    kind = PARENTHETICAL;
+                final int slot = open(kind);
+                for (Expression child : compound.getSubexpressions()) {
+                    add(child);
+                }
+                close(slot, compound.getSubexpressions().size());
+                return;
+            }
+            final TerminalExpression terminal = (TerminalExpression) expression;
+            final TerminalValue value = terminal.getValue();
+            final String text = terminal.getText();
+            if (value != null && value.isVariable())
+                copyLiteral(VARIABLE, value.getCharacterValue(), null);
+            else if (value != null && !value.isBig() && (text.length() == 1 || text.charAt(0) != '0'))
+                copyLiteral(NUMBER, value.getNumericValue(), null);
+            else
+                copyLiteral(TEXT, 0, text);
+        }
+
+        /**
+         * Starts a compound node; its children are added until the matching close.
+         * @param kind the compound kind
+         * @return the node's index, to pass to close
+         */
+        int open(byte kind) {
+            ensureCapacity();
+            kinds[size] = kind;
+            parents[size] = currentParent;
+            currentParent = size;
+            return size++;
+        }
+
+        /**
+         * Finishes a compound node once all of its children were added.
+         * @param slot the index returned by open
+         * @param childCount number of children added since open
+         */
+        void close(int slot, int childCount) {
+            childCounts[slot] = childCount;
+            subtreeSizes[slot] = size - slot;
+            currentParent = parents[slot];
+        }
+
+        /**
+         * Adds a literal node.
+         * @param kind NUMBER, VARIABLE or TEXT
+         * @param value the number or character (ignored for TEXT)
+         * @param text the literal's text for TEXT, otherwise null
+         */
+        void copyLiteral(byte kind, long value, String text) {
+            ensureCapacity();
+            kinds[size] = kind;
+            subtreeSizes[size] = 1;
+            parents[size] = currentParent;
+            if (kind == TEXT) {
+                if (textCount == texts.length)
+                    texts = Arrays.copyOf(texts, Math.max(4, textCount * 2));
+                texts[textCount] = text;
+                value = textCount++;
+            }
+            values[size] = value;
+            size++;
+        }
+
+        /**
+         * Makes room for one more node when the capacity given up front was too small.
+         */
+        private void ensureCapacity() {
+            if (size < kinds.length)
+                return;
+            final int capacity = (int) Math.min(Integer.MAX_VALUE - 8, Math.max(16, size * 2L));
+            kinds = Arrays.copyOf(kinds, capacity);
+            childCounts = Arrays.copyOf(childCounts, capacity);
+            subtreeSizes = Arrays.copyOf(subtreeSizes, capacity);
+            parents = Arrays.copyOf(parents, capacity);
+            values = Arrays.copyOf(values, capacity);
+        }
+
+        CompactExpressionTree build() {
+            return new CompactExpressionTree(Arrays.copyOf(kinds, size), Arrays.copyOf(childCounts, size),
+                    Arrays.copyOf(subtreeSizes, size), Arrays.copyOf(parents, size), Arrays.copyOf(values, size),
+                    Arrays.copyOf(texts, textCount));
+        }
+    }
+}
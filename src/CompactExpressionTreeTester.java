@@ -0,0 +1,161 @@
+import static org.junit.Assert.*;
+import org.junit.Test;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Checks that CompactExpressionTree behaves like the object model it encodes.
+ */
+public class CompactExpressionTreeTester {
+	private static final String[] EXPRESSIONS = {
+		"a+b", "13*x", "4*(z+5*x)", "(x+(x)+(x+x)+x)", "2*x+3*y+4*z+(7+6*z)", "((a))", "007+99999999999999999999*q"
+	};
+
+	@Test
+	/**
+	 * Verifies that encoding and decoding a parsed tree preserves it.
+	 */
+	public void testRoundTrip () throws ExpressionParseException {
+		for(String expressionStr : EXPRESSIONS) {
+			final Expression expression = new SimpleExpressionParser().parse(expressionStr, false);
+			final CompactExpressionTree tree = CompactExpressionTree.fromExpression(expression);
+			assertEquals(expression.convertToString(0), tree.convertToString(0));
+			assertEquals(expression.convertToString(0), tree.toExpression().convertToString(0));
+		}
+	}
+
+	@Test
+	/**
+	 * Verifies that flattening the compact encoding matches flattening the object model.
+	 */
+	public void testFlatten () {
+		final AbstractCompoundExpression sum = new AdditiveCompoundExpression();
+		final AbstractCompoundExpression inner = new AdditiveCompoundExpression();
+		final AbstractCompoundExpression product = new MultiplicativeCompoundExpression();
+		inner.addSubexpression(new TerminalExpression("a"));
+		inner.addSubexpression(new TerminalExpression("b"));
+		product.addSubexpression(new TerminalExpression("2"));
+		product.addSubexpression(inner);
+		sum.addSubexpression(inner.deepCopy());
+		sum.addSubexpression(product);
+		sum.addSubexpression(new TerminalExpression("c"));
+		final CompactExpressionTree flattened = CompactExpressionTree.fromExpression(sum).flatten();
+		sum.flatten();
+		assertEquals(sum.convertToString(0), flattened.convertToString(0));
+	}
+
+	@Test
+	/**
+	 * Verifies child and sibling navigation.
+	 */
+	public void testNavigation () throws ExpressionParseException {
+		final CompactExpressionTree tree = CompactExpressionTree.fromExpression(new SimpleExpressionParser().parse("a*(b+c)+d", false));
+		final int product = tree.firstChild(0);
+		assertEquals(CompactExpressionTree.MULTIPLICATIVE, tree.getKind(product));
+		final int d = tree.nextSibling(product);
+		assertEquals("d", tree.getText(d));
+		assertEquals(-1, tree.nextSibling(d));
+		assertEquals(0, tree.getParent(d));
+		assertEquals(2, tree.getChildCount(0));
+	}
+
+	@Test
+	/**
+	 * Verifies that the binary format loads back the same tree from a buffer, a stream and a mapped file.
+	 */
+	public void testBinaryRoundTrip () throws ExpressionParseException, IOException {
+		for(String expressionStr : EXPRESSIONS) {
+			final Expression expression = new SimpleExpressionParser().parse(expressionStr, false);
+			final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			CompactExpressionTree.fromExpression(expression).writeTo(bytes);
+			final String expected = expression.convertToString(0);
+			assertEquals(expected, CompactExpressionTree.readFrom(ByteBuffer.wrap(bytes.toByteArray())).convertToString(0));
+			assertEquals(expected, CompactExpressionTree.readFrom(new ByteArrayInputStream(bytes.toByteArray())).toExpression().convertToString(0));
+		}
+
+		final StringBuilder builder = new StringBuilder("x");
+		for(int i = 0; i < 5000; i++)
+			builder.append("+(").append(i * 1000003L).append("*y)");
+		final CompactExpressionTree large = CompactExpressionTree.fromExpression(new TokenizingExpressionParser().parse(builder.toString(), false));
+		final Path file = Files.createTempFile("expression", ".ext");
+		try {
+			try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file))) {
+				large.writeTo(out);
+			}
+			try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+				final ByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+				assertEquals(large.convertToString(0), CompactExpressionTree.readFrom(mapped).convertToString(0));
+				assertFalse(mapped.hasRemaining());
+			}
+		} finally {
+			Files.delete(file);
+		}
+	}
+
+	@Test
+	/**
+	 * Verifies that truncated or corrupt input is rejected.
+	 */
+	public void testBinaryCorrupt () throws ExpressionParseException, IOException {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		CompactExpressionTree.fromExpression(new SimpleExpressionParser().parse("a*(b+c)+d", false)).writeTo(bytes);
+		final byte[] encoded = bytes.toByteArray();
+		for(int length = 0; length < encoded.length; length++) {
+			assertBinaryRejected(ByteBuffer.wrap(encoded, 0, length));
+		}
+		final byte[] badChildCount = encoded.clone();
+		badChildCount[6] = 9;
+		assertBinaryRejected(ByteBuffer.wrap(badChildCount));
+	}
+
+	@Test
+	/**
+	 * Verifies that node counts, operands and texts read from corrupt input are rejected without trusting them, and
+	 * that nodes after the complete root are rejected.
+	 */
+	public void testBinaryCorruptOperands () {
+		final int[][] corrupt = {
+			// Huge node count with nothing after it
+			{ 'E', 'X', 'T', 1, 0xF0, 0xFF, 0xFF, 0xFF, 0x07 },
+			// Negative NUMBER
+			{ 'E', 'X', 'T', 1, 1, CompactExpressionTree.NUMBER, 0xFF, 0xFF, 0xFF, 0xFF, 0xFF, 0xFF, 0xFF, 0xFF, 0xFF, 0x01 },
+			// Huge TEXT length with a short text
+			{ 'E', 'X', 'T', 1, 1, CompactExpressionTree.TEXT, 0xFF, 0xFF, 0xFF, 0xFF, 0x07, '1', '2' },
+			// TEXT that is not a literal
+			{ 'E', 'X', 'T', 1, 1, CompactExpressionTree.TEXT, 2, '1', '+' },
+			// Variable outside [a-z]
+			{ 'E', 'X', 'T', 1, 1, CompactExpressionTree.VARIABLE, 'A' },
+			// Two roots
+			{ 'E', 'X', 'T', 1, 2, CompactExpressionTree.NUMBER, 1, CompactExpressionTree.NUMBER, 2 },
+			// A sum with one child, followed by a node outside it
+			{ 'E', 'X', 'T', 1, 3, CompactExpressionTree.ADDITIVE, 1, CompactExpressionTree.VARIABLE, 'a', CompactExpressionTree.VARIABLE, 'b' },
+		};
+		for (int[] values : corrupt) {
+			final byte[] bytes = new byte[values.length];
+			for (int i = 0; i < values.length; i++)
+				bytes[i] = (byte) values[i];
+			assertBinaryRejected(ByteBuffer.wrap(bytes));
+			try {
+				CompactExpressionTree.readFrom(new ByteArrayInputStream(bytes));
+				fail("Expected an IOException");
+			} catch (IOException expected) {
+			}
+		}
+	}
+
+	private static void assertBinaryRejected (ByteBuffer buffer) {
+		try {
+			CompactExpressionTree.readFrom(buffer);
+			fail("Expected an IOException");
+		} catch (IOException expected) {
+		}
+	}
+}
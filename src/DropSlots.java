@@ -0,0 +1,73 @@
+import java.util.Arrays;
+
+/**
+ * The horizontal center a dragged expression would have at each placement among its siblings.
+ * Siblings are laid out left to right in one HBox with the same operator label between each pair, so every
+ * arrangement can be computed from the siblings' bounds in the current layout, without laying any of them out.
+ * The centers increase with the placement, which lets nearest() pick a slot by binary search.
+ */
+public class DropSlots {
+    final private double[] centers;
+
+    /**
+     * Computes the slot centers from the current layout of the siblings.
+     * @param minX left edge of each sibling, in layout order
+     * @param maxX right edge of each sibling, in layout order
+     * @param movedIndex index of the sibling being dragged
+     */
+    DropSlots(double[] minX, double[] maxX, int movedIndex) {
+        final int count = minX.length;
+        centers = new double[count];
+        double totalWidth = 0;
+        for (int i = 0; i < count; i++) {
+            totalWidth += maxX[i] - minX[i];
+        }
+        //Whatever is not covered by the siblings is the operator labels between them
+        final double gap = count > 1 ? (maxX[count - 1] - minX[0] - totalWidth) / (count - 1) : 0;
+        final double movedHalfWidth = (maxX[movedIndex] - minX[movedIndex]) / 2;
+        double x = minX[0];
+        int other = 0;
+        for (int placement = 0; placement < count; placement++) {
+            centers[placement] = x + movedHalfWidth;
+            if (other == movedIndex)
+                other++;
+            if (other < count)
+                x += maxX[other] - minX[other] + gap;
+            other++;
+        }
+    }
+
+    /**
+     * Returns the number of placements.
+     * @return the number of siblings, including the moved one
+     */
+    public int size() {
+        return centers.length;
+    }
+
+    /**
+     * Returns the center the moved expression would have at a placement.
+     * @param placement index among the siblings
+     * @return scene-relative x of the center
+     */
+    public double getCenter(int placement) {
+        return centers[placement];
+    }
+
+    /**
+     * Finds the placement whose center is closest to an x position, in O(log n).
+     * @param x scene-relative x of the dragged expression's center
+     * @return the closest placement
+     */
+    public int nearest(double x) {
+        final int index = Arrays.binarySearch(centers, x);
+        if (index >= 0)
+            return index;
+        final int insertion = -index - 1;
+        if (insertion == 0)
+            return 0;
+        if (insertion == centers.length)
+            return centers.length - 1;
+        return x - centers[insertion - 1] <= centers[insertion] - x ? insertion - 1 : insertion;
+    }
+}
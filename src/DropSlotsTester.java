@@ -0,0 +1,71 @@
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ * Checks the slot centers and nearest-slot search of DropSlots.
+ */
+public class DropSlotsTester {
+	private static final double DELTA = 1e-9;
+
+	/**
+	 * Three siblings 10, 20 and 30 wide, starting at x=100, with a 5 wide operator label between each pair
+	 */
+	private static final double[] MIN_X = { 100, 115, 140 };
+	private static final double[] MAX_X = { 110, 135, 170 };
+
+	@Test
+	/**
+	 * Verifies the slot centers when the first, a middle and the last sibling is dragged, and that the dragged
+	 * sibling's own slot is where it is laid out now.
+	 */
+	public void testCenters () {
+		assertCenters(new DropSlots(MIN_X, MAX_X, 0), 105, 130, 165);
+		assertCenters(new DropSlots(MIN_X, MAX_X, 1), 110, 125, 160);
+		assertCenters(new DropSlots(MIN_X, MAX_X, 2), 115, 130, 155);
+		for (int moved = 0; moved < MIN_X.length; moved++) {
+			assertEquals((MIN_X[moved] + MAX_X[moved]) / 2, new DropSlots(MIN_X, MAX_X, moved).getCenter(moved), DELTA);
+		}
+	}
+
+	@Test
+	/**
+	 * Verifies the nearest slot beyond both edges, on each center and on either side of the midpoints between them.
+	 */
+	public void testNearest () {
+		for (int moved : new int[] { 0, MIN_X.length - 1 }) {
+			final DropSlots slots = new DropSlots(MIN_X, MAX_X, moved);
+			assertEquals(0, slots.nearest(Double.NEGATIVE_INFINITY));
+			assertEquals(0, slots.nearest(slots.getCenter(0) - 50));
+			assertEquals(slots.size() - 1, slots.nearest(slots.getCenter(slots.size() - 1) + 50));
+			assertEquals(slots.size() - 1, slots.nearest(Double.POSITIVE_INFINITY));
+			for (int placement = 0; placement < slots.size(); placement++) {
+				assertEquals(placement, slots.nearest(slots.getCenter(placement)));
+			}
+			for (int placement = 1; placement < slots.size(); placement++) {
+				final double midpoint = (slots.getCenter(placement - 1) + slots.getCenter(placement)) / 2;
+				assertEquals(placement - 1, slots.nearest(midpoint - 0.5));
+				assertEquals(placement - 1, slots.nearest(midpoint));
+				assertEquals(placement, slots.nearest(midpoint + 0.5));
+			}
+		}
+	}
+
+	@Test
+	/**
+	 * Verifies that a single sibling has one slot, at its own center.
+	 */
+	public void testSingleSibling () {
+		final DropSlots slots = new DropSlots(new double[] { 20 }, new double[] { 30 }, 0);
+		assertEquals(1, slots.size());
+		assertEquals(25, slots.getCenter(0), DELTA);
+		assertEquals(0, slots.nearest(-100));
+		assertEquals(0, slots.nearest(100));
+	}
+
+	private static void assertCenters (DropSlots slots, double... centers) {
+		assertEquals(centers.length, slots.size());
+		for (int i = 0; i < centers.length; i++) {
+			assertEquals(centers[i], slots.getCenter(i), DELTA);
+		}
+	}
+}
@@ -1,21 +1,10 @@
-import javafx.geometry.Bounds;
-import javafx.scene.layout.*;
-import javafx.scene.paint.Color;
-import javafx.scene.Node;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 
+/**
+ * Headless model of an expression tree. Nothing in the model depends on JavaFX; ExpressionView renders a tree.
+ */
 interface Expression {
-	/**
-	 * Border for showing a focused expression
-	 */
-	public static final Border RED_BORDER = new Border(
-	  new BorderStroke(Color.RED, BorderStrokeStyle.SOLID, CornerRadii.EMPTY, BorderWidths.DEFAULT)
-	);
-
-	/**
-	 * Border for showing a non-focused expression
-	 */
-	public static final Border NO_BORDER = null;
-
 	/**
 	 * Returns the expression's parent.
 	 * @return the expression's parent
@@ -36,13 +25,6 @@ interface Expression {
 	 */
 	Expression deepCopy ();
 
-
-	/**
-	 * Returns the JavaFX node associated with this expression.
-	 * @return the JavaFX node associated with this expression.
-	 */
-	Node getNode ();
-
 	/**
 	 * Recursively flattens the expression as much as possible
 	 * throughout the entire tree. Specifically, in every multiplicative
@@ -52,19 +34,29 @@ interface Expression {
 	 */
 	void flatten ();
 
-	/**
-	 * Calculates the scene-relative bounds of this expression.
-	 * @return scene-relative bounds
-	 */
-	Bounds computeBounds();
-
 	/**
 	 * Creates a String representation by recursively printing out (using indentation) the
 	 * tree represented by this expression, starting at the specified indentation level.
 	 * @param stringBuilder the StringBuilder to use for building the String representation
 	 * @param indentLevel the indentation level (number of tabs from the left margin) at which to start
 	 */	
-	void convertToString (StringBuilder stringBuilder, int indentLevel);
+	default void convertToString (StringBuilder stringBuilder, int indentLevel) {
+		try {
+			convertToString((Appendable) stringBuilder, indentLevel);
+		} catch (IOException ioe) {
+			// A StringBuilder never throws
+			throw new UncheckedIOException(ioe);
+		}
+	}
+
+	/**
+	 * Writes the same representation as convertToString(StringBuilder, int) line by line, so a large tree can be
+	 * streamed to a (buffered) Writer without building the whole String first.
+	 * @param out the destination of the String representation
+	 * @param indentLevel the indentation level (number of tabs from the left margin) at which to start
+	 * @throws IOException if out cannot be written
+	 */
+	void convertToString (Appendable out, int indentLevel) throws IOException;
 
 	public default String convertToString (int indentLevel) {
 		final StringBuilder stringBuilder = new StringBuilder();
@@ -79,23 +71,45 @@ interface Expression {
 	 * @param indentLevel the number of tabs to append.
 	 */
 	public static void indent (StringBuilder stringBuilder, int indentLevel) {
-		for (int i = 0; i < indentLevel; i++) {
-			stringBuilder.append('\t');
-		}
+		Tabs.append(stringBuilder, indentLevel);
 	}
 
 	/**
-	 * Set this expression to be "ghosting" or at half opacity.
-	 * @param ghost true if ghosting should be enabled (half opacity)
+	 * Static helper method to indent a specified number of times from the left margin, by
+	 * appending tab characters to the specified Appendable in runs rather than one at a time.
+	 * @param out the Appendable to which to append tab characters.
+	 * @param indentLevel the number of tabs to append.
+	 * @throws IOException if out cannot be written
 	 */
-	public default void setGhost(boolean ghost) {
-		if(ghost) {
-			getNode().setOpacity(0.5);
-		} else {
-			getNode().setOpacity(1);
-		}
+	public static void indent (Appendable out, int indentLevel) throws IOException {
+		Tabs.append(out, indentLevel);
 	}
 
+	/**
+	 * Set this expression to be "ghosting", i.e. the placeholder left behind by an expression being dragged.
+	 * Views draw ghosting expressions at half opacity.
+	 * @param ghost true if ghosting should be enabled
+	 */
+	void setGhost(boolean ghost);
+
+	/**
+	 * Returns whether this expression is "ghosting".
+	 * @return true if ghosting
+	 */
+	boolean isGhost();
+
+	/**
+	 * Set this expression to be the focused (selected) expression. Views draw the focused expression with a border.
+	 * @param focused true if this expression should be focused
+	 */
+	void setFocused(boolean focused);
+
+	/**
+	 * Returns whether this expression is the focused expression.
+	 * @return true if focused
+	 */
+	boolean isFocused();
+
 	/**
 	 * Finds the currently "ghosting" expression block in this expression (if it exists)
 	 * @return Ghost expression
@@ -0,0 +1,389 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Headless command-line entry point that parses and flattens newline-delimited expressions in bulk.
+ * Usage: java ExpressionBatch [--compact] [--threads n] [file]
+ * Expressions are read from the file, which is memory-mapped one window at a time, or from standard input
+ * through a fixed-size buffer, so memory use does not depend on the size of the input. Each expression is
+ * written as its convertToString tree, or with --compact as a single line that parses back to the same tree.
+ * Lines that cannot be parsed are reported on standard error with their line and column; blank lines are skipped.
+ * Lines are handled in blocks: the lines of a block are parsed and rendered in parallel on a fork-join pool (one
+ * thread per core unless --threads says otherwise), then written in input order. Close the batch when done with it
+ * to stop the pool's threads.
+ */
+public class ExpressionBatch implements AutoCloseable {
+    /**
+     * Size of the part of a file mapped at once
+     */
+    private static final int MAP_WINDOW = 64 << 20;
+
+    /**
+     * Size of the buffer standard input is read through
+     */
+    private static final int READ_BUFFER = 1 << 20;
+
+    /**
+     * Number of lines parsed together before their output is written
+     */
+    private static final int BLOCK_LINES = 4096;
+
+    /**
+     * Number of lines below which a block is no longer split between threads
+     */
+    private static final int SPLIT_THRESHOLD = 64;
+
+    final private ExpressionParser parser;
+    final private boolean compact;
+    final private Writer out;
+    final private PrintStream err;
+    final private int readBufferSize;
+    final private ForkJoinPool pool;
+    final private int[] starts = new int[BLOCK_LINES];
+    final private int[] ends = new int[BLOCK_LINES];
+    final private String[] results = new String[BLOCK_LINES];
+    final private boolean[] failed = new boolean[BLOCK_LINES];
+    private ByteBuffer blockBuffer;
+    private int blockSize = 0;
+    private long lineNumber = 0;
+    private long errorCount = 0;
+
+    public static void main(String[] args) throws IOException {
+        boolean compact = false;
+        int threads = Runtime.getRuntime().availableProcessors();
+        String file = null;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--compact")) {
+                compact = true;
+            } else if (args[i].equals("--threads") && i + 1 < args.length && args[i + 1].matches("[1-9][0-9]*")) {
+                threads = Integer.parseInt(args[++i]);
+            } else if (file == null && !args[i].startsWith("--")) {
+                file = args[i];
+            } else {
+                System.err.println("Usage: java ExpressionBatch [--compact] [--threads n] [file]");
+                System.exit(2);
+            }
+        }
+        final Writer out = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8), 1 << 16);
+        final long errorCount;
+        try (ExpressionBatch batch = new ExpressionBatch(new TokenizingExpressionParser(), compact, out, System.err, threads)) {
+            if (file == null)
+                batch.process(System.in);
+            else
+                batch.process(Paths.get(file));
+            errorCount = batch.getErrorCount();
+        }
+        out.flush();
+        System.exit(errorCount > 0 ? 1 : 0);
+    }
+
+    /**
+     * Creates a batch that writes each expression to out and each error to err.
+     * @param parser the parser to use for each line; it is shared by all threads
+     * @param compact true to write single-line expressions instead of trees
+     * @param out destination of the parsed expressions
+     * @param err destination of the per-line error reports
+     * @param threads number of threads parsing in parallel, 1 to parse on the calling thread only
+     */
+    public ExpressionBatch(ExpressionParser parser, boolean compact, Writer out, PrintStream err, int threads) {
+        this(parser, compact, out, err, threads, READ_BUFFER);
+    }
+
+    ExpressionBatch(ExpressionParser parser, boolean compact, Writer out, PrintStream err, int threads, int readBufferSize) {
+        this.parser = parser;
+        this.compact = compact;
+        this.out = out;
+        this.err = err;
+        this.readBufferSize = readBufferSize;
+        this.pool = threads > 1 ? new ForkJoinPool(threads) : null;
+    }
+
+    /**
+     * Processes every line of a file, mapping it into memory one window at a time.
+     * @param path the file to read
+     * @throws IOException if the file cannot be read or the output cannot be written
+     */
+    public void process(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            final long size = channel.size();
+            long position = 0;
+            int window = MAP_WINDOW;
+            int scanned = 0;
+            while (position < size) {
+                final int length = (int) Math.min(window, size - position);
+                final boolean last = position + length == size;
+                final int consumed = processLines(channel.map(FileChannel.MapMode.READ_ONLY, position, length), scanned, length, last);
+                if (consumed == 0) {
+                    //A single line is longer than the window; map more of it, without scanning the start again
+                    if (window == Integer.MAX_VALUE)
+                        throw new IOException("Line " + (lineNumber + 1) + " is too long");
+                    window = (int) Math.min(Integer.MAX_VALUE, 2L * window);
+                    scanned = length;
+                    continue;
+                }
+                position += consumed;
+                scanned = 0;
+            }
+        }
+    }
+
+    /**
+     * Processes every line of a stream, reading it through a fixed-size buffer.
+     * @param in the stream to read
+     * @throws IOException if the stream cannot be read or the output cannot be written
+     */
+    public void process(InputStream in) throws IOException {
+        byte[] buffer = new byte[readBufferSize];
+        int filled = 0;
+        int scanned = 0;
+        boolean last = false;
+        while (!last) {
+            final int read = in.read(buffer, filled, buffer.length - filled);
+            if (read < 0)
+                last = true;
+            else
+                filled += read;
+            //Bytes left over from the previous refill hold no newline, so only the new ones are scanned
+            final int consumed = processLines(ByteBuffer.wrap(buffer), scanned, filled, last);
+            System.arraycopy(buffer, consumed, buffer, 0, filled - consumed);
+            filled -= consumed;
+            scanned = filled;
+            //Only a line that does not fit grows the buffer
+            if (filled == buffer.length)
+                buffer = Arrays.copyOf(buffer, 2 * buffer.length);
+        }
+    }
+
+    /**
+     * Processes the complete lines in the first limit bytes of a buffer. All of their output is written before
+     * returning, so the caller may reuse the buffer afterwards.
+     * @param buffer bytes of the input
+     * @param from offset to start looking for line ends; the bytes before it are known to hold none
+     * @param limit number of valid bytes in buffer
+     * @param last true if no input follows, in which case a final unterminated line is processed as well
+     * @return number of bytes consumed, i.e. the offset just past the last processed line
+     * @throws IOException if the output cannot be written
+     */
+    private int processLines(ByteBuffer buffer, int from, int limit, boolean last) throws IOException {
+        blockBuffer = buffer;
+        int start = 0;
+        for (int i = from; i < limit; i++) {
+            if (buffer.get(i) == '\n') {
+                addLine(start, i);
+                start = i + 1;
+            }
+        }
+        if (last && start < limit) {
+            addLine(start, limit);
+            start = limit;
+        }
+        flushBlock();
+        return start;
+    }
+
+    /**
+     * Adds a line of the current buffer to the block, processing the block once it is full.
+     * @param start offset of the line (inclusive)
+     * @param end offset of the line (exclusive), not including the newline
+     * @throws IOException if the output cannot be written
+     */
+    private void addLine(int start, int end) throws IOException {
+        starts[blockSize] = start;
+        ends[blockSize] = end;
+        if (++blockSize == BLOCK_LINES)
+            flushBlock();
+    }
+
+    /**
+     * Parses every line of the block, in parallel if there is a pool, and writes the results in input order.
+     * @throws IOException if the output cannot be written
+     */
+    private void flushBlock() throws IOException {
+        if (pool == null || blockSize <= SPLIT_THRESHOLD) {
+            for (int i = 0; i < blockSize; i++) {
+                render(i);
+            }
+        } else {
+            pool.invoke(new RenderTask(0, blockSize));
+        }
+        for (int i = 0; i < blockSize; i++) {
+            lineNumber++;
+            if (failed[i]) {
+                errorCount++;
+                err.println("line " + lineNumber + results[i]);
+            } else if (results[i] != null) {
+                out.append(results[i]);
+            }
+            results[i] = null;
+        }
+        blockSize = 0;
+    }
+
+    /**
+     * Parses one line of the block and stores its output, or the reason it could not be parsed, in results.
+     * Only touches the entries for that line, so different lines can be rendered concurrently.
+     * @param index index of the line in the block
+     */
+    private void render(int index) {
+        int end = ends[index];
+        if (end > starts[index] && blockBuffer.get(end - 1) == '\r')
+            end--;
+        final AsciiSequence line = new AsciiSequence(blockBuffer, starts[index], end - starts[index]);
+        failed[index] = false;
+        if (isBlank(line))
+            return;
+        final Expression expression;
+        try {
+            expression = parser.parse(line, 0, line.length(), false);
+        } catch (ExpressionParseException epe) {
+            failed[index] = true;
+            if (epe.getErrorOffset() >= 0)
+                results[index] = ", column " + (epe.getErrorOffset() + 1) + ": " + epe.getMessage();
+            else
+                results[index] = ": " + epe.getMessage();
+            return;
+        }
+        final StringBuilder output = new StringBuilder();
+        if (compact) {
+            appendCompact(expression, output);
+            output.append('\n');
+        } else {
+            expression.convertToString(output, 0);
+        }
+        results[index] = output.toString();
+    }
+
+    /**
+     * Renders a range of the block's lines, splitting it between the pool's threads.
+     */
+    private class RenderTask extends RecursiveAction {
+        final private int from, to;
+
+        RenderTask(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= SPLIT_THRESHOLD) {
+                for (int i = from; i < to; i++) {
+                    render(i);
+                }
+                return;
+            }
+            final int middle = (from + to) >>> 1;
+            invokeAll(new RenderTask(from, middle), new RenderTask(middle, to));
+        }
+    }
+
+    /**
+     * Checks whether a line holds nothing but spaces, in which case it is skipped rather than reported.
+     * @param sequence the line, without its line terminator
+     * @return true if the line is empty or all spaces
+     */
+    private static boolean isBlank(CharSequence sequence) {
+        for (int i = 0; i < sequence.length(); i++) {
+            if (sequence.charAt(i) != ' ')
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Appends an expression on a single line in the input grammar, without spaces.
+     * @param expression the expression to write
+     * @param builder the StringBuilder to append to
+     */
+    static void appendCompact(Expression expression, StringBuilder builder) {
+        if (expression instanceof TerminalExpression) {
+            builder.append(((TerminalExpression) expression).getText());
+            return;
+        }
+        final AbstractCompoundExpression compound = (AbstractCompoundExpression) expression;
+        final List<Expression> children = compound.getSubexpressions();
+        if (compound.getOperation().equals("()")) {
+            builder.append('(');
+            appendCompact(children.get(0), builder);
+            builder.append(')');
+            return;
+        }
+        for (int i = 0; i < children.size(); i++) {
+            if (i > 0)
+                builder.append(compound.getOperation());
+            appendCompact(children.get(i), builder);
+        }
+    }
+
+    /**
+     * Stops the threads of the batch's pool, if it has one. Lines already processed are unaffected; the batch
+     * cannot process more input afterwards.
+     */
+    @Override
+    public void close() {
+        if (pool != null)
+            pool.shutdown();
+    }
+
+    /**
+     * Returns the number of lines that could not be parsed so far.
+     * @return the error count
+     */
+    public long getErrorCount() {
+        return errorCount;
+    }
+
+    /**
+     * A view of a span of single-byte characters, so lines are parsed straight out of the input buffer.
+     * Reads use absolute positions only, so several threads can read the same buffer.
+     */
+    private static class AsciiSequence implements CharSequence {
+        final private ByteBuffer buffer;
+        final private int offset;
+        final private int length;
+
+        AsciiSequence(ByteBuffer buffer, int offset, int length) {
+            this.buffer = buffer;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        @Override
+        public int length() {
+            return length;
+        }
+
+        @Override
+        public char charAt(int index) {
+            return (char) (buffer.get(offset + index) & 0xff);
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return new AsciiSequence(buffer, offset + start, end - start);
+        }
+
+        @Override
+        public String toString() {
+            final byte[] bytes = new byte[length];
+            for (int i = 0; i < length; i++) {
+                bytes[i] = buffer.get(offset + i);
+            }
+            return new String(bytes, StandardCharsets.ISO_8859_1);
+        }
+    }
+}
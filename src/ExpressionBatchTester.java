@@ -0,0 +1,137 @@
+import static org.junit.Assert.*;
+import org.junit.Test;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Checks the headless batch entry point.
+ */
+public class ExpressionBatchTester {
+	private final StringWriter _out = new StringWriter();
+	private final ByteArrayOutputStream _err = new ByteArrayOutputStream();
+
+	private ExpressionBatch createBatch (boolean compact, int readBufferSize) {
+		return new ExpressionBatch(new TokenizingExpressionParser(), compact, _out, new PrintStream(_err, true), 1, readBufferSize);
+	}
+
+	private static ByteArrayInputStream stream (String input) {
+		return new ByteArrayInputStream(input.getBytes(StandardCharsets.US_ASCII));
+	}
+
+	@Test
+	/**
+	 * Verifies that every line is written as its flattened tree.
+	 */
+	public void testTreeOutput () throws IOException {
+		createBatch(false, 1 << 10).process(stream("1+2+3\r\n\n(x)*y"));
+		assertEquals("+\n\t1\n\t2\n\t3\n*\n\t()\n\t\tx\n\ty\n", _out.toString());
+		assertEquals(0, _err.size());
+	}
+
+	@Test
+	/**
+	 * Verifies that compact output parses back to the same expression.
+	 */
+	public void testCompactOutput () throws IOException, ExpressionParseException {
+		createBatch(true, 1 << 10).process(stream("(1 + 2) + 3 * (4 * x)\n"));
+		assertEquals("(1+2)+3*(4*x)\n", _out.toString());
+		final ExpressionParser parser = new SimpleExpressionParser();
+		assertEquals(parser.parse("(1 + 2) + 3 * (4 * x)", false).convertToString(0),
+		  parser.parse(_out.toString().trim(), false).convertToString(0));
+	}
+
+	@Test
+	/**
+	 * Verifies that bad lines are reported with their position and do not stop the batch.
+	 */
+	public void testErrorsPerLine () throws IOException {
+		final ExpressionBatch batch = createBatch(true, 1 << 10);
+		batch.process(stream("1+\nx*y\n(2 #)\n"));
+		assertEquals("x*y\n", _out.toString());
+		assertEquals(2, batch.getErrorCount());
+		final String[] errors = new String(_err.toByteArray(), StandardCharsets.US_ASCII).split("\n");
+		assertTrue(errors[0].startsWith("line 1, column 3: "));
+		assertTrue(errors[1].startsWith("line 3, column 4: "));
+	}
+
+	@Test
+	/**
+	 * Verifies that a long line arriving a few bytes per read is reassembled; each refill only scans the new bytes.
+	 */
+	public void testTricklingStream () throws IOException {
+		final StringBuilder line = new StringBuilder("x");
+		for (int i = 0; i < 20000; i++)
+			line.append("+y");
+		final ByteArrayInputStream trickle = new ByteArrayInputStream((line + "\n1*2\n").getBytes(StandardCharsets.US_ASCII)) {
+			@Override
+			public synchronized int read (byte[] b, int off, int len) {
+				return super.read(b, off, Math.min(len, 7));
+			}
+		};
+		createBatch(true, 16).process(trickle);
+		assertEquals(line + "\n1*2\n", _out.toString());
+	}
+
+	@Test
+	/**
+	 * Verifies that lines longer than the read buffer and lines spanning buffer refills are handled.
+	 */
+	public void testSmallBuffer () throws IOException {
+		final StringBuilder input = new StringBuilder();
+		final StringBuilder expected = new StringBuilder();
+		for (int i = 0; i < 50; i++) {
+			final StringBuilder line = new StringBuilder("x");
+			for (int j = 0; j < i; j++) {
+				line.append('+').append(j);
+			}
+			input.append(line).append('\n');
+			expected.append(line).append('\n');
+		}
+		createBatch(true, 16).process(stream(input.toString()));
+		assertEquals(expected.toString(), _out.toString());
+	}
+
+	@Test
+	/**
+	 * Verifies that a mapped file gives the same result as a stream.
+	 */
+	public void testFile () throws IOException {
+		final Path file = Files.createTempFile("expressions", ".txt");
+		try {
+			Files.write(file, "2*x+3*y\n(7+6*z)\nq".getBytes(StandardCharsets.US_ASCII));
+			createBatch(true, 1 << 10).process(file);
+			assertEquals("2*x+3*y\n(7+6*z)\nq\n", _out.toString());
+		} finally {
+			Files.delete(file);
+		}
+	}
+
+	@Test
+	/**
+	 * Verifies that parsing on several threads with a shared parser keeps the output and errors in input order.
+	 */
+	public void testParallelOrder () throws IOException {
+		final StringBuilder input = new StringBuilder();
+		final StringBuilder expected = new StringBuilder();
+		for (int i = 0; i < 10000; i++) {
+			if (i % 1000 == 999) {
+				input.append(i).append("+\n");
+				continue;
+			}
+			input.append(i).append(" * (x + ").append(i % 7).append(")\n");
+			expected.append(i).append("*(x+").append(i % 7).append(")\n");
+		}
+		try (ExpressionBatch batch = new ExpressionBatch(new SimpleExpressionParser(true), true, _out, new PrintStream(_err, true), 4)) {
+			batch.process(stream(input.toString()));
+			assertEquals(10, batch.getErrorCount());
+		}
+		assertEquals(expected.toString(), _out.toString());
+		assertTrue(new String(_err.toByteArray(), StandardCharsets.US_ASCII).startsWith("line 1000: "));
+	}
+}
@@ -0,0 +1,240 @@
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Micro-benchmarks for the parsers and the expression tree operations.
+ * Usage: java ExpressionBenchmark [--seed n] [name...]
+ * With names given, only the benchmarks whose name contains one of them are run. Each benchmark is warmed up,
+ * then timed over several fixed-length iterations; its mean time per operation (with the standard deviation across
+ * iterations) and the bytes allocated per operation are printed. Inputs come from a seeded ExpressionGenerator and
+ * are prepared outside the timed loops, so only the operation itself is measured.
+ * Run with a fixed heap (e.g. -Xms1g -Xmx1g) when comparing builds; mvn -Pbenchmark package does so (see pom.xml).
+ */
+public class ExpressionBenchmark {
+    private static final int WARMUP_ITERATIONS = 5, MEASUREMENT_ITERATIONS = 10;
+
+    /**
+     * Target duration of one iteration
+     */
+    private static final long ITERATION_NANOS = 200_000_000L;
+
+    /**
+     * Largest number of inputs prepared and run at once; an iteration runs as many batches as fit in ITERATION_NANOS
+     */
+    private static final int MAX_BATCH = 256;
+
+    /**
+     * A batch that takes less than this is doubled for the next one, so the clock is read rarely on fast operations
+     * while slow ones still finish close to ITERATION_NANOS
+     */
+    private static final long BATCH_NANOS = ITERATION_NANOS / 16;
+
+    /**
+     * Shape of the generated workloads. The small shapes are small enough for the backtracking SimpleExpressionParser
+     * to finish, so all three parsers can be compared on them.
+     */
+    private static final int WIDE_TERMS = 100, NESTED_DEPTH = 50, BACKTRACKING_DEPTH = 12,
+            SMALL_WIDE_TERMS = 10, SMALL_NESTED_DEPTH = 10, TREE_WIDTH = 8, TREE_DEPTH = 5;
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    /**
+     * Receives every result, so the JIT cannot discard the work that produced it
+     */
+    private static volatile int sink;
+
+    final private List<Benchmark<?>> benchmarks = new ArrayList<>();
+
+    /**
+     * Runs the benchmarks.
+     * @param args the command-line arguments (see the class comment)
+     */
+    public static void main(String[] args) throws Exception {
+        long seed = 2103;
+        final List<String> filters = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--seed") && i + 1 < args.length && args[i + 1].matches("-?[0-9]+")) {
+                seed = Long.parseLong(args[++i]);
+            } else if (!args[i].startsWith("--")) {
+                filters.add(args[i]);
+            } else {
+                System.err.println("Usage: java ExpressionBenchmark [--seed n] [name...]");
+                System.exit(2);
+            }
+        }
+        final ExpressionBenchmark suite = new ExpressionBenchmark(seed);
+        System.out.printf("%-32s %14s %12s %14s%n", "Benchmark", "ns/op", "error", "B/op");
+        for (Benchmark<?> benchmark : suite.benchmarks) {
+            if (filters.isEmpty() || filters.stream().anyMatch(benchmark.name::contains))
+                suite.run(benchmark);
+        }
+    }
+
+    /**
+     * Creates the benchmark suite, generating its inputs.
+     * @param seed the seed of the input generator
+     */
+    public ExpressionBenchmark(long seed) throws ExpressionParseException {
+        final ExpressionGenerator generator = new ExpressionGenerator(seed);
+        final String wide = generator.wide(WIDE_TERMS);
+        final String nested = generator.nested(NESTED_DEPTH);
+        final String backtracking = generator.nested(BACKTRACKING_DEPTH);
+        final String smallWide = generator.wide(SMALL_WIDE_TERMS);
+        final String smallNested = generator.nested(SMALL_NESTED_DEPTH);
+        final ExpressionParser simple = new SimpleExpressionParser(), memoized = new SimpleExpressionParser(true),
+                tokenizing = new TokenizingExpressionParser();
+
+        add("parse.wide.memoized", () -> wide, input -> memoized.parse(input, false));
+        add("parse.wide.tokenizing", () -> wide, input -> tokenizing.parse(input, false));
+        add("parse.nested.memoized", () -> nested, input -> memoized.parse(input, false));
+        add("parse.nested.tokenizing", () -> nested, input -> tokenizing.parse(input, false));
+        add("parse.wide.small.simple", () -> smallWide, input -> simple.parse(input, false));
+        add("parse.wide.small.memoized", () -> smallWide, input -> memoized.parse(input, false));
+        add("parse.wide.small.tokenizing", () -> smallWide, input -> tokenizing.parse(input, false));
+        add("parse.nested.small.simple", () -> smallNested, input -> simple.parse(input, false));
+        add("parse.nested.small.memoized", () -> smallNested, input -> memoized.parse(input, false));
+        add("parse.nested.small.tokenizing", () -> smallNested, input -> tokenizing.parse(input, false));
+        add("parse.backtracking.simple", () -> backtracking, input -> simple.parse(input, false));
+        add("parse.backtracking.memoized", () -> backtracking, input -> memoized.parse(input, false));
+        add("parse.backtracking.tokenizing", () -> backtracking, input -> tokenizing.parse(input, false));
+
+        final AbstractCompoundExpression tree = (AbstractCompoundExpression) tokenizing.parse(generator.random(TREE_WIDTH, TREE_DEPTH), false);
+        add("tree.flatten", () -> ExpressionGenerator.unflattened(tree), input -> {
+            input.flatten();
+            return input;
+        });
+        add("tree.deepCopy", () -> tree, Expression::deepCopy);
+        //Each run permutes its own copy, so no run sees a tree an earlier run worked on
+        add("tree.buildPermutations", () -> (AbstractCompoundExpression) tree.deepCopy(), input -> {
+            final List<AbstractCompoundExpression> permutations = input.buildPermutations(firstLeaf(input));
+            for (int i = 0; i < permutations.size(); i++)
+                permutations.get(i);
+            return permutations;
+        });
+        add("tree.convertToString", () -> tree, input -> input.convertToString(0));
+    }
+
+    /**
+     * Returns the leaf reached by always descending into the first subexpression, i.e. the deepest expression that
+     * can be moved.
+     * @param expression the root of the tree
+     * @return the first leaf of the tree
+     */
+    private static Expression firstLeaf(Expression expression) {
+        while (expression instanceof AbstractCompoundExpression)
+            expression = ((AbstractCompoundExpression) expression).getSubexpressions().get(0);
+        return expression;
+    }
+
+    private <T> void add(String name, Input<T> input, Operation<T> operation) {
+        benchmarks.add(new Benchmark<>(name, input, operation));
+    }
+
+    /**
+     * Warms up and measures one benchmark, then prints its results.
+     * @param benchmark the benchmark to run
+     */
+    private void run(Benchmark<?> benchmark) throws Exception {
+        for (int i = 0; i < WARMUP_ITERATIONS; i++)
+            benchmark.iterate();
+        final double[] nanosPerOperation = new double[MEASUREMENT_ITERATIONS];
+        long operations = 0, allocated = 0;
+        for (int i = 0; i < MEASUREMENT_ITERATIONS; i++) {
+            final Iteration iteration = benchmark.iterate();
+            nanosPerOperation[i] = (double) iteration.nanos / iteration.operations;
+            operations += iteration.operations;
+            allocated += iteration.allocated;
+        }
+        double mean = 0, variance = 0;
+        for (double nanos : nanosPerOperation)
+            mean += nanos / MEASUREMENT_ITERATIONS;
+        for (double nanos : nanosPerOperation)
+            variance += (nanos - mean) * (nanos - mean) / (MEASUREMENT_ITERATIONS - 1);
+        final String allocation = allocated < 0 ? "n/a" : String.format("%.1f", (double) allocated / operations);
+        System.out.printf("%-32s %14.1f %12s %14s%n", benchmark.name, mean, String.format("+- %.1f", Math.sqrt(variance)), allocation);
+    }
+
+    /**
+     * Returns the number of bytes allocated by the current thread so far.
+     * @return the allocated bytes, or -1 if the JVM does not count them
+     */
+    private static long allocatedBytes() {
+        if (THREADS instanceof com.sun.management.ThreadMXBean) {
+            final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) THREADS;
+            if (threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled())
+                return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    /**
+     * Prepares a fresh input for one run of a benchmark's operation.
+     */
+    private interface Input<T> {
+        T get() throws Exception;
+    }
+
+    /**
+     * The code being measured.
+     */
+    private interface Operation<T> {
+        Object run(T input) throws Exception;
+    }
+
+    /**
+     * The time, operation count and allocation of one iteration.
+     */
+    private static class Iteration {
+        long nanos = 0, operations = 0, allocated = 0;
+    }
+
+    private static class Benchmark<T> {
+        final private String name;
+        final private Input<T> input;
+        final private Operation<T> operation;
+        final private List<T> inputs = new ArrayList<>(MAX_BATCH);
+        final private Object[] results = new Object[MAX_BATCH];
+        private int batch = 1;
+
+        Benchmark(String name, Input<T> input, Operation<T> operation) {
+            this.name = name;
+            this.input = input;
+            this.operation = operation;
+        }
+
+        /**
+         * Runs batches of operations until ITERATION_NANOS of them were timed. The clock is only read around each
+         * batch, and results are folded into the sink after it, so neither is part of the time per operation.
+         * Preparing each batch's inputs is neither timed nor counted as allocation.
+         * @return the measurements of the iteration
+         */
+        Iteration iterate() throws Exception {
+            final Iteration iteration = new Iteration();
+            int hash = 0;
+            while (iteration.nanos < ITERATION_NANOS) {
+                inputs.clear();
+                for (int i = 0; i < batch; i++)
+                    inputs.add(input.get());
+                final long allocatedBefore = allocatedBytes();
+                final long start = System.nanoTime();
+                for (int i = 0; i < batch; i++)
+                    results[i] = operation.run(inputs.get(i));
+                final long elapsed = System.nanoTime() - start;
+                final long allocatedAfter = allocatedBytes();
+                iteration.nanos += elapsed;
+                iteration.operations += batch;
+                iteration.allocated = allocatedBefore < 0 || iteration.allocated < 0 ? -1 : iteration.allocated + allocatedAfter - allocatedBefore;
+                for (int i = 0; i < batch; i++) {
+                    hash += System.identityHashCode(results[i]);
+                    results[i] = null;
+                }
+                if (elapsed < BATCH_NANOS && batch < MAX_BATCH)
+                    batch *= 2;
+            }
+            sink += hash;
+            return iteration;
+        }
+    }
+}
@@ -7,6 +7,12 @@ import javafx.scene.control.*;
 import javafx.scene.input.MouseEvent;
 import javafx.stage.Stage;
 
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.List;
+
 public class ExpressionEditor extends Application {
 	public static void main (String[] args) {
 		launch(args);
@@ -18,19 +24,24 @@ public class ExpressionEditor extends Application {
 	private static class MouseEventHandler implements EventHandler<MouseEvent> {
 		final private Pane pane;
 		private AbstractCompoundExpression root;
+		private ExpressionView rootView;
 
 		private Expression focused;
 
 		private double ini_x, ini_y;
-		private Expression floatingClone;
+		private ExpressionView floatingClone;
 		private boolean dragging = false;
 		private boolean didDrag = false;
-		private AbstractCompoundExpression[] dragPermutations;
-		private AbstractCompoundExpression lastSeenPermutation;
+		private List<AbstractCompoundExpression> dragPermutations;
+		private ExpressionView[] dragPermutationViews;
+		private DropSlots dropSlots;
+		private double floatingCenterX;
+		private ExpressionView lastSeenPermutation;
 
-		MouseEventHandler (Pane pane_, AbstractCompoundExpression rootExpression_) {
+		MouseEventHandler (Pane pane_, ExpressionView rootView_) {
 			pane = pane_;
-			root = rootExpression_;
+			rootView = rootView_;
+			root = (AbstractCompoundExpression) rootView.getExpression();
 			focused = root;
 		}
 
@@ -57,7 +68,9 @@ public class ExpressionEditor extends Application {
 			}
 			ini_x = event.getSceneX();
 			ini_y = event.getSceneY();
-			if(!focused.computeBounds().contains(ini_x, ini_y))
+			//The focused expression may be hidden in a placeholder; then it cannot be grabbed
+			final Bounds focusedBounds = rootView.computeBounds(focused);
+			if(focusedBounds == null || !focusedBounds.contains(ini_x, ini_y))
 				return;
 
 			dragging = true;
@@ -74,31 +87,32 @@ public class ExpressionEditor extends Application {
 					initialDragSetup();
 				floatingClone.getNode().setTranslateX(event.getSceneX() - ini_x);
 				floatingClone.getNode().setTranslateY(event.getSceneY() - ini_y);
-				double closestDistance = Integer.MAX_VALUE;
-				for (AbstractCompoundExpression possibility : dragPermutations) {
-					final Node possibility_node = possibility.getNode();
-					if(!didDrag) {
-						possibility_node.setLayoutX(WINDOW_WIDTH / 4);
-						possibility_node.setLayoutY(WINDOW_HEIGHT / 2);
-						pane.getChildren().add(possibility_node);
-
-						pane.applyCss();
-						pane.layout(); // Force getChildren() to update early in order to calculate ghost's bounds
-						// on the same tick as adding to getChildren()
-					}
-					possibility_node.setOpacity(0);
-					final Node ghostingNode = possibility.findGhost().getNode();
-					double distance = calculateDistance(floatingClone.getNode(), ghostingNode);
-					if (distance < closestDistance) {
-						closestDistance = distance;
-						lastSeenPermutation = possibility;
-					}
-				}
+				//All placements share one row, so the closest ghost is the closest slot horizontally
+				showPermutation(dropSlots.nearest(floatingCenterX + event.getSceneX() - ini_x));
 				didDrag = true;
-				lastSeenPermutation.getNode().setOpacity(1);
 			}
 		}
 
+		/**
+		 * Shows the arrangement with the focused expression at the specified placement, rendering it on first use.
+		 * @param placement index of the focused expression among its siblings
+		 */
+		private void showPermutation(int placement) {
+			if(dragPermutationViews[placement] == null) {
+				final ExpressionView view = new ExpressionView(dragPermutations.get(placement), RENDER_BUDGET, RENDER_CHUNK);
+				view.getNode().setLayoutX(WINDOW_WIDTH / 4);
+				view.getNode().setLayoutY(WINDOW_HEIGHT / 2);
+				dragPermutationViews[placement] = view;
+			}
+			final ExpressionView view = dragPermutationViews[placement];
+			if(view == lastSeenPermutation)
+				return;
+			if(lastSeenPermutation != null)
+				pane.getChildren().remove(lastSeenPermutation.getNode());
+			pane.getChildren().add(0, view.getNode()); // below the floating clone
+			lastSeenPermutation = view;
+		}
+
 		/**
 		 * Handle mouse "release" action by adjusting focus if necessary, or dropping the expression if we were dragging.
 		 * @param event MouseEvent describing the user action.
@@ -108,12 +122,16 @@ public class ExpressionEditor extends Application {
 				dropFocused();
 				return;
 			}
+			//Clicking a placeholder inside the focused expression only renders more of it
+			if(focused instanceof AbstractCompoundExpression
+			  && rootView.reveal((AbstractCompoundExpression) focused, event.getSceneX(), event.getSceneY()))
+				return;
 			if(focused != null)
-				((Region)focused.getNode()).setBorder(Expression.NO_BORDER);
+				rootView.setFocused(focused, false);
 			//Find our focus
 			if(focused instanceof AbstractCompoundExpression) {
 				final AbstractCompoundExpression casted = (AbstractCompoundExpression) focused;
-				final Expression newFocus = casted.focusDeeper(event.getSceneX(), event.getSceneY());
+				final Expression newFocus = rootView.focusDeeper(casted, event.getSceneX(), event.getSceneY());
 				if(focused == newFocus) focused = root;
 				else focused = newFocus;
 			}
@@ -123,7 +141,7 @@ public class ExpressionEditor extends Application {
 			}
 			if(focused == null) focused = root;
 			if(focused != root) {
-				((Region) focused.getNode()).setBorder(Expression.RED_BORDER);
+				rootView.setFocused(focused, true);
 			}
 		}
 
@@ -132,33 +150,33 @@ public class ExpressionEditor extends Application {
 		 * Additionally calculates permutations possible by moving our node.
 		 */
 		private void initialDragSetup() {
-			floatingClone = focused.deepCopy();
-			final Bounds sceneBoundsOfFocused = focused.computeBounds();
+			floatingClone = new ExpressionView(focused.deepCopy(), RENDER_BUDGET, RENDER_CHUNK);
+			final Bounds sceneBoundsOfFocused = rootView.computeBounds(focused);
 			final Bounds paneBoundsOfFocused = pane.sceneToLocal(sceneBoundsOfFocused);
 			floatingClone.getNode().setLayoutX(paneBoundsOfFocused.getMinX());
 			floatingClone.getNode().setLayoutY(paneBoundsOfFocused.getMinY());
-			((Region) floatingClone.getNode()).setBorder(Expression.NO_BORDER);
 			pane.getChildren().add(floatingClone.getNode());
 
-			//Generate potential "alternative configurations"
+			floatingCenterX = (sceneBoundsOfFocused.getMinX() + sceneBoundsOfFocused.getMaxX()) / 2;
+
+			//Potential "alternative configurations" are only built once the drag reaches their slot
 			dragPermutations = root.buildPermutations(focused);
-			pane.getChildren().remove(root.getNode()); //Remove our actual original root since we generate it as a possibility.
-		}
+			dragPermutationViews = new ExpressionView[dragPermutations.size()];
+			lastSeenPermutation = null;
 
-		/**
-		 * Calculates the distance between two nodes' center.
-		 * @param node The first node to calculate distance from
-		 * @param ghostingNode The second node to calculate distance to
-		 * @return a Double describing the distance.
-		 */
-		private double calculateDistance(Node node, Node ghostingNode) {
-			final Bounds firstNode = node.localToScene(node.getBoundsInLocal());
-			final Bounds secondNode = ghostingNode.localToScene(ghostingNode.getBoundsInLocal());
-			final Point2D firstCenter = new Point2D((firstNode.getMinX() + firstNode.getMaxX()) / 2, (firstNode.getMinY() + firstNode.getMaxY()) / 2);
-			final Point2D secondCenter = new Point2D((secondNode.getMinX() + secondNode.getMaxX()) / 2, (secondNode.getMinY() + secondNode.getMaxY()) / 2);
-			final double xDelta = (firstCenter.getX() - secondCenter.getX());
-			final double yDelta = (firstCenter.getY() - secondCenter.getY());
-			return Math.sqrt(xDelta * xDelta + yDelta * yDelta);
+			//Measure where the focused expression would sit in each of them from its siblings' current layout;
+			//only the rendered siblings can be dropped onto
+			final AbstractCompoundExpression parent = (AbstractCompoundExpression) focused.getParent();
+			final List<Expression> siblings = parent.getSubexpressions().subList(0, rootView.getRenderedChildCount(parent));
+			final double[] minX = new double[siblings.size()];
+			final double[] maxX = new double[siblings.size()];
+			for (int i = 0; i < minX.length; i++) {
+				final Bounds siblingBounds = rootView.computeBounds(siblings.get(i));
+				minX[i] = siblingBounds.getMinX();
+				maxX[i] = siblingBounds.getMaxX();
+			}
+			dropSlots = new DropSlots(minX, maxX, parent.indexOfSubexpression(focused));
+			pane.getChildren().remove(rootView.getNode()); //Remove our actual original root since we generate it as a possibility.
 		}
 
 		/**
@@ -170,10 +188,28 @@ public class ExpressionEditor extends Application {
 			//lock us into a new configuration
 			pane.getChildren().clear();
 			pane.getChildren().add(lastSeenPermutation.getNode());
-			lastSeenPermutation.findGhost().setGhost(false);
-			focused = lastSeenPermutation.findFocus();
-			root = lastSeenPermutation;
-			System.out.println(root.convertToString(0));
+			rootView = lastSeenPermutation;
+			root = (AbstractCompoundExpression) rootView.getExpression();
+			root.adoptSubexpressions(); //The permutation shares subtrees with the old root; claim them
+			rootView.setGhost(root.findGhost(), false);
+			focused = root.findFocus();
+			if(DEBUG)
+				printTree(root);
+		}
+
+		/**
+		 * Streams a tree to standard output, for debugging; this walks the whole tree, so it is off by default.
+		 * @param expression the tree to print
+		 */
+		private void printTree(Expression expression) {
+			final Writer writer = new BufferedWriter(new OutputStreamWriter(System.out));
+			try {
+				expression.convertToString(writer, 0);
+				writer.write('\n');
+				writer.flush();
+			} catch (IOException ioe) {
+				ioe.printStackTrace();
+			}
 		}
 	}
 
@@ -182,15 +218,31 @@ public class ExpressionEditor extends Application {
 	 */
 	private static final int WINDOW_WIDTH = 500, WINDOW_HEIGHT = 250;
 
+	/**
+	 * Number of expressions rendered up front, and number of children of a wide expression rendered at once
+	 */
+	private static final int RENDER_BUDGET = 2000, RENDER_CHUNK = 64;
+
+	/**
+	 * Number of parsed expressions remembered, so re-parsing recent text is a copy
+	 */
+	private static final int PARSE_CACHE_SIZE = 64;
+
+	/**
+	 * Print the tree to standard output after every drop; enabled with -Dexpressioneditor.debug=true
+	 */
+	private static final boolean DEBUG = Boolean.getBoolean("expressioneditor.debug");
+
 	/**
 	 * Initial expression shown in the textbox
 	 */
 	private static final String EXAMPLE_EXPRESSION = "2*x+3*y+4*z+(7+6*z)";
 
 	/**
-	 * Parser used for parsing expressions.
+	 * Parser used for parsing expressions: a cache in front of TokenizingExpressionParser, which builds the same trees
+	 * as SimpleExpressionParser in linear time instead of backtracking.
 	 */
-	private final ExpressionParser expressionParser = new SimpleExpressionParser();
+	private final ExpressionParser expressionParser = new CachingExpressionParser(new TokenizingExpressionParser(), PARSE_CACHE_SIZE);
 
 	/**
 	 * Renders the main window and hooks listeners.
@@ -214,15 +266,16 @@ public class ExpressionEditor extends Application {
 			try {
 				// Success! Add the expression's Node to the expressionPane
 				final Expression expression = expressionParser.parse(textField.getText(), true);
+				final ExpressionView view = new ExpressionView(expression, RENDER_BUDGET, RENDER_CHUNK);
 				expressionPane.getChildren().clear();
-				expressionPane.getChildren().add(expression.getNode());
-				expression.getNode().setLayoutX(WINDOW_WIDTH/4);
-				expression.getNode().setLayoutY(WINDOW_HEIGHT/2);
+				expressionPane.getChildren().add(view.getNode());
+				view.getNode().setLayoutX(WINDOW_WIDTH/4);
+				view.getNode().setLayoutY(WINDOW_HEIGHT/2);
 
 				// If the parsed expression is a CompoundExpression, then register some callbacks
 				if (expression instanceof AbstractCompoundExpression) {
-					((Pane) expression.getNode()).setBorder(Expression.NO_BORDER);
-					final MouseEventHandler eventHandler = new MouseEventHandler(expressionPane, (AbstractCompoundExpression) expression);
+					view.getNode().setBorder(ExpressionView.NO_BORDER);
+					final MouseEventHandler eventHandler = new MouseEventHandler(expressionPane, view);
 					expressionPane.setOnMousePressed(eventHandler);
 					expressionPane.setOnMouseDragged(eventHandler);
 					expressionPane.setOnMouseReleased(eventHandler);
@@ -241,7 +294,9 @@ public class ExpressionEditor extends Application {
 		root.setTop(queryPane);
 		root.setCenter(expressionPane);
 
-		primaryStage.setScene(new Scene(root, WINDOW_WIDTH, WINDOW_HEIGHT));
+		final Scene scene = new Scene(root, WINDOW_WIDTH, WINDOW_HEIGHT);
+		scene.getStylesheets().add(ExpressionEditor.class.getResource("expression.css").toExternalForm());
+		primaryStage.setScene(scene);
 		primaryStage.show();
 	}
 }
@@ -0,0 +1,175 @@
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Deterministic source of random expressions in the editor's grammar (+, *, parentheses, [0-9]+ and [a-z]),
+ * used as the workload of benchmarks and scaling tests. A generator created with the same seed and literal
+ * distribution always produces the same sequence of expressions, so measurements of different builds see
+ * identical input.
+ */
+public class ExpressionGenerator {
+    final private Random random;
+    final private double letterFraction;
+    final private int maxDigits;
+
+    /**
+     * Creates a generator whose literals are letters or numbers of up to three digits, equally likely.
+     * @param seed the seed of the generator's random sequence
+     */
+    public ExpressionGenerator(long seed) {
+        this(seed, 0.5, 3);
+    }
+
+    /**
+     * Creates a generator with a given literal distribution.
+     * @param seed the seed of the generator's random sequence
+     * @param letterFraction probability that a literal is a letter rather than a number, between 0 and 1
+     * @param maxDigits maximum number of digits of a number; each length from 1 to maxDigits is equally likely
+     */
+    public ExpressionGenerator(long seed, double letterFraction, int maxDigits) {
+        if (letterFraction < 0 || letterFraction > 1 || maxDigits < 1)
+            throw new IllegalArgumentException("Invalid literal distribution: " + letterFraction + ", " + maxDigits);
+        this.random = new Random(seed);
+        this.letterFraction = letterFraction;
+        this.maxDigits = maxDigits;
+    }
+
+    /**
+     * Generates a shallow, wide expression: a sum of terms, each the product of one to three literals,
+     * without any parentheses.
+     * @param terms number of terms in the sum
+     * @return the expression's text
+     */
+    public String wide(int terms) {
+        final StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < terms; i++) {
+            if (i > 0)
+                builder.append('+');
+            final int factors = 1 + random.nextInt(3);
+            for (int j = 0; j < factors; j++) {
+                if (j > 0)
+                    builder.append('*');
+                appendLiteral(builder);
+            }
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Generates a deep, narrow expression: a literal combined with a parenthesized expression one level shallower,
+     * e.g. "a+(3*(b+c))", with a random operator at each level.
+     * @param depth number of nested parentheses
+     * @return the expression's text
+     */
+    public String nested(int depth) {
+        final StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < depth; i++) {
+            appendLiteral(builder);
+            builder.append(random.nextBoolean() ? '+' : '*').append('(');
+        }
+        appendLiteral(builder);
+        for (int i = 0; i < depth; i++)
+            builder.append(')');
+        return builder.toString();
+    }
+
+    /**
+     * Generates a random expression: a sum or product of two to width operands, each a literal or, while depth
+     * allows, a parenthesized random expression one level shallower.
+     * @param width maximum number of operands of each sum or product
+     * @param depth maximum number of nested parentheses
+     * @return the expression's text
+     */
+    public String random(int width, int depth) {
+        final StringBuilder builder = new StringBuilder();
+        appendRandom(builder, Math.max(2, width), depth);
+        return builder.toString();
+    }
+
+    /**
+     * Generates a complete expression tree: every sum or product has exactly width operands, which are
+     * parenthesized expressions of the same shape one level shallower, or literals at depth 0. The expression
+     * therefore has width^(depth+1) literals. The operator of each sum or product is chosen at random.
+     * @param width number of operands of each sum or product, at least 2
+     * @param depth number of nested parentheses
+     * @return the expression's text
+     */
+    public String complete(int width, int depth) {
+        if (width < 2)
+            throw new IllegalArgumentException("Width must be at least 2: " + width);
+        final StringBuilder builder = new StringBuilder();
+        appendComplete(builder, width, depth);
+        return builder.toString();
+    }
+
+    private void appendComplete(StringBuilder builder, int width, int depth) {
+        final char operator = random.nextBoolean() ? '+' : '*';
+        for (int i = 0; i < width; i++) {
+            if (i > 0)
+                builder.append(operator);
+            if (depth > 0) {
+                builder.append('(');
+                appendComplete(builder, width, depth - 1);
+                builder.append(')');
+            } else {
+                appendLiteral(builder);
+            }
+        }
+    }
+
+    private void appendRandom(StringBuilder builder, int width, int depth) {
+        final char operator = random.nextBoolean() ? '+' : '*';
+        final int operands = 2 + random.nextInt(width - 1);
+        for (int i = 0; i < operands; i++) {
+            if (i > 0)
+                builder.append(operator);
+            if (depth > 0 && random.nextInt(3) == 0) {
+                builder.append('(');
+                appendRandom(builder, width, depth - 1);
+                builder.append(')');
+            } else {
+                appendLiteral(builder);
+            }
+        }
+    }
+
+    /**
+     * Appends a random literal drawn from the generator's literal distribution.
+     * @param builder the destination of the literal
+     */
+    private void appendLiteral(StringBuilder builder) {
+        if (random.nextDouble() < letterFraction) {
+            builder.append((char) ('a' + random.nextInt(26)));
+        } else {
+            final int digits = 1 + random.nextInt(maxDigits);
+            for (int i = 0; i < digits; i++)
+                builder.append((char) ('0' + random.nextInt(10)));
+        }
+    }
+
+    /**
+     * Copies a tree into the shape the parser builds before flattening: every sum and product has exactly two
+     * operands and nests to the left, as in A := A+M. Flattening the copy yields the original tree again.
+     * @param expression the (flattened) tree to copy
+     * @return an unflattened copy of expression
+     */
+    public static Expression unflattened(Expression expression) {
+        if (!(expression instanceof AbstractCompoundExpression))
+            return expression.deepCopy();
+        final AbstractCompoundExpression compound = (AbstractCompoundExpression) expression;
+        final List<Expression> children = compound.getSubexpressions();
+        Expression left = unflattened(children.get(0));
+        if (children.size() == 1) {
+            final AbstractCompoundExpression single = compound.createSelf();
+            single.addSubexpression(left);
+            return single;
+        }
+        for (int i = 1; i < children.size(); i++) {
+            final AbstractCompoundExpression pair = compound.createSelf();
+            pair.addSubexpression(left);
+            pair.addSubexpression(unflattened(children.get(i)));
+            left = pair;
+        }
+        return left;
+    }
+}
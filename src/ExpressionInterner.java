@@ -0,0 +1,49 @@
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Hash-consing factory: rebuilds expression trees so that structurally equal subtrees are one shared instance.
+ * Machine-generated input that repeats the same terms over and over then costs memory for each distinct subtree
+ * only, and equal subtrees can be recognized by identity.
+ * An interned tree is a directed acyclic graph rather than a tree: a shared subtree's getParent() names only the
+ * first expression it was added to. Interned trees are therefore meant for reading (comparing, printing, encoding);
+ * deepCopy one before editing it or handing it to the editor.
+ */
+public class ExpressionInterner {
+    final private Map<Expression, Expression> canonical = new HashMap<>();
+
+    /**
+     * Returns the canonical instance of an expression, building it (and interning its subexpressions) the first
+     * time a structurally equal expression is seen. The expression itself is never modified or shared.
+     * @param expression the expression to intern
+     * @return the shared instance equal to expression
+     */
+    public Expression intern(Expression expression) {
+        final Expression existing = canonical.get(expression);
+        if (existing != null)
+            return existing;
+        final Expression created;
+        if (expression instanceof AbstractCompoundExpression) {
+            final AbstractCompoundExpression compound = (AbstractCompoundExpression) expression;
+            final AbstractCompoundExpression copy = compound.createSelf();
+            for (Expression child : compound.getSubexpressions()) {
+                copy.addSharedSubexpression(intern(child));
+            }
+            if (compound.isNormalized())
+                copy.flatten();
+            created = copy;
+        } else {
+            created = expression.deepCopy();
+        }
+        canonical.put(created, created);
+        return created;
+    }
+
+    /**
+     * Returns the number of distinct subtrees interned so far.
+     * @return the number of canonical instances
+     */
+    public int size() {
+        return canonical.size();
+    }
+}
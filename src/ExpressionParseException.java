@@ -1,5 +1,25 @@
 class ExpressionParseException extends Exception {
+	private final int errorOffset;
+
 	public ExpressionParseException (String message) {
+		this(message, -1);
+	}
+
+	/**
+	 * Creates a parse exception that remembers where in the input parsing failed.
+	 * @param message the detail message
+	 * @param errorOffset the character offset in the original input at which the error was found
+	 */
+	public ExpressionParseException (String message, int errorOffset) {
 		super(message);
+		this.errorOffset = errorOffset;
+	}
+
+	/**
+	 * Returns the character offset in the original input at which the error was found.
+	 * @return the error offset, or -1 if the parser did not report one
+	 */
+	public int getErrorOffset () {
+		return errorOffset;
 	}
 }
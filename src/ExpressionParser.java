@@ -1,10 +1,34 @@
+/**
+ * Parses the expression grammar into headless expression trees.
+ * Implementations keep no per-call state in fields, so one parser can be shared by many threads.
+ */
 interface ExpressionParser {
 	/**
 	 * Attempts to create an expression tree -- flattened as much as possible -- from the specified String.
 	 * Throws a ExpressionParseException if the specified string cannot be parsed.
 	 * @param str the string to parse into an expression tree
-	 * @param withJavaFXControls whether to create JavaFX GUI objects for the expression tree
+	 * @param withJavaFXControls retained for compatibility; the tree is always headless (render it with an ExpressionView)
 	 * @return the Expression object representing the parsed expression tree
 	 */
 	Expression parse (String str, boolean withJavaFXControls) throws ExpressionParseException;
+
+	/**
+	 * Parses the [start, end) span of a character sequence, such as a CharBuffer over a mapped file.
+	 * Error offsets are reported as indices into input. Parsers that can scan the sequence directly
+	 * should override this; by default the span is copied into a String.
+	 * @param input the character sequence containing the expression
+	 * @param start start offset of the expression (inclusive)
+	 * @param end end offset of the expression (exclusive)
+	 * @param withJavaFXControls retained for compatibility; the tree is always headless (render it with an ExpressionView)
+	 * @return the Expression object representing the parsed expression tree
+	 */
+	default Expression parse (CharSequence input, int start, int end, boolean withJavaFXControls) throws ExpressionParseException {
+		try {
+			return parse(input.subSequence(start, end).toString(), withJavaFXControls);
+		} catch (ExpressionParseException epe) {
+			if (epe.getErrorOffset() < 0)
+				throw epe;
+			throw new ExpressionParseException(epe.getMessage(), start + epe.getErrorOffset());
+		}
+	}
 }
@@ -2,6 +2,8 @@ import static org.junit.Assert.*;
 import org.junit.Before;
 import org.junit.Test;
 import java.io.*;
+import java.math.BigInteger;
+import java.nio.CharBuffer;
 
 /**
  * Code to test Project 5; you should definitely add more tests!
@@ -111,4 +113,74 @@ public class ExpressionParserPartialTester {
 		_parser.parse(expressionStr, false);
 		System.out.println("CS2103GRDR -3");  // shouldn't get this far
 	}
+
+	@Test
+	/**
+	 * Verifies that memoizing mode builds the same trees as the plain parser and reuses span results.
+	 */
+	public void testMemoizedParse () throws ExpressionParseException {
+		final SimpleExpressionParser memoParser = new SimpleExpressionParser(true);
+		final String[] expressions = { "a+b", "4*(z+5*x)", "(x+(x)+(x+x)+x)", "2*x+3*y+4*z+(7+6*z)" };
+		for(String expressionStr : expressions) {
+			assertEquals(_parser.parse(expressionStr, false).convertToString(0), memoParser.parse(expressionStr, false).convertToString(0));
+		}
+		memoParser.parse("((((a+b)*(c+d))+((e+f)*(g+h)))*x+y)", false);
+		assertTrue(memoParser.getMemoHits() > 0);
+		assertTrue(memoParser.getMemoMisses() > 0);
+		final SimpleExpressionParser.MemoStats stats = memoParser.getMemoStats();
+		assertEquals(memoParser.getMemoHits(), stats.getHits());
+		assertEquals(memoParser.getMemoMisses(), stats.getMisses());
+		memoParser.parse("a", false);
+		assertNotSame(stats, memoParser.getMemoStats());
+		assertEquals(0, memoParser.getMemoStats().getHits());
+	}
+
+	@Test(expected = ExpressionParseException.class)
+	/**
+	 * Verifies that memoizing mode still rejects invalid expressions.
+	 */
+	public void testMemoizedException () throws ExpressionParseException {
+		new SimpleExpressionParser(true).parse("((1+2)*", false);
+	}
+
+	@Test
+	/**
+	 * Verifies that a span of a CharBuffer parses like the equivalent String, with spaces skipped.
+	 */
+	public void testCharSequenceSpan () throws ExpressionParseException {
+		final CharBuffer buffer = CharBuffer.wrap("xx 4 * ( z+5 *x ) yy");
+		final String parseTreeStr = "·\n\t4\n\t()\n\t\t+\n\t\t\tz\n\t\t\t·\n\t\t\t\t5\n\t\t\t\tx\n";
+		assertEquals(parseTreeStr, _parser.parse(buffer, 2, 18, false).convertToString(0).replace('*', '·'));
+	}
+
+	@Test
+	/**
+	 * Verifies that repeated variables and small numbers share one pooled payload, and leading zeros are kept.
+	 */
+	public void testPooledTerminals () throws ExpressionParseException {
+		final AbstractCompoundExpression expression = (AbstractCompoundExpression) _parser.parse("x+7+x+7+007", false);
+		final TerminalValue[] values = new TerminalValue[5];
+		for(int i = 0; i < values.length; i++)
+			values[i] = ((TerminalExpression) expression.getSubexpressions().get(i)).getValue();
+		assertSame(values[0], values[2]);
+		assertSame(values[1], values[3]);
+		assertEquals("007", values[4].getText());
+		assertEquals(7, values[4].getNumericValue());
+	}
+
+	@Test
+	/**
+	 * Verifies that literals too large for a long are parsed instead of throwing a NumberFormatException.
+	 */
+	public void testLargeLiteral () throws ExpressionParseException {
+		final String expressionStr = "9223372036854775807+9223372036854775808*x";
+		final AbstractCompoundExpression expression = (AbstractCompoundExpression) _parser.parse(expressionStr, false);
+		final TerminalValue fits = ((TerminalExpression) expression.getSubexpressions().get(0)).getValue();
+		assertFalse(fits.isBig());
+		assertEquals(Long.MAX_VALUE, fits.getNumericValue());
+		final AbstractCompoundExpression product = (AbstractCompoundExpression) expression.getSubexpressions().get(1);
+		final TerminalValue big = ((TerminalExpression) product.getSubexpressions().get(0)).getValue();
+		assertTrue(big.isBig());
+		assertEquals(new BigInteger("9223372036854775808"), big.getBigValue());
+	}
 }
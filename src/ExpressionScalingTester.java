@@ -0,0 +1,366 @@
+import static org.junit.Assert.*;
+import org.junit.Assume;
+import org.junit.Test;
+import java.util.function.IntFunction;
+
+/**
+ * Checks that parsing and flattening scale polynomially with the size of the input.
+ * Each test measures an operation on generated inputs of growing size, fits the exponent k of cost ~ size^k by least
+ * squares on a log-log scale, and fails if k exceeds the bound configured for that operation. Exponential
+ * backtracking shows up as a large fitted exponent, or stops the test early once a single run costs too much.
+ * By default the cost of a parse is the number of characters it reads, and the cost of flatten the number of
+ * subexpressions it moves to a new parent. Neither depends on the machine or on the JIT, so the exponent is the
+ * same on every run. Wall-clock timing is noisy on loaded machines and only runs
+ * when the scaling.timing system property is true (e.g. -Dscaling.timing=true); its bounds leave room for that noise.
+ */
+public class ExpressionScalingTester {
+	/**
+	 * Growth bounds: the memoizing parser is cubic (every span is split at every operator), the tokenizing parser
+	 * and flatten are linear
+	 */
+	private static final double MEMOIZED_BOUND = 4.0, LINEAR_BOUND = 1.5;
+
+	/**
+	 * Most characters a single parse may read before the input is declared too slow to be polynomial
+	 */
+	private static final long READ_LIMIT = 200_000_000L;
+
+	/**
+	 * System property that enables the wall-clock tests
+	 */
+	private static final String TIMING_PROPERTY = "scaling.timing";
+
+	/**
+	 * Longest a single timed run may take before the input is declared too slow to be polynomial
+	 */
+	private static final long RUN_LIMIT_NANOS = 5_000_000_000L;
+
+	/**
+	 * Minimum number of timed runs per size, and minimum total time spent per size; the fastest run is used
+	 */
+	private static final int MIN_RUNS = 5;
+	private static final long MIN_NANOS_PER_SIZE = 50_000_000L;
+
+	/**
+	 * Time spent running each operation on its smallest input before any measurement
+	 */
+	private static final long WARMUP_NANOS = 300_000_000L;
+
+	/**
+	 * Capacity of the parse cache, as in the editor
+	 */
+	private static final int PARSE_CACHE_SIZE = 64;
+
+	private static final long SEED = 2103;
+
+	@Test
+	/**
+	 * Verifies that the work of parsing wide, flat sums scales within the bounds, for the memoizing parser and for
+	 * a cached tokenizing parser.
+	 */
+	public void testParseWidth () throws Exception {
+		final ExpressionGenerator generator = new ExpressionGenerator(SEED);
+		assertReads("memoized parse of wide sums", MEMOIZED_BOUND, new int[] { 8, 16, 32, 64 }, generator::wide,
+				new SimpleExpressionParser(true));
+		assertReads("cached tokenizing parse of wide sums", LINEAR_BOUND, new int[] { 1000, 2000, 4000, 8000 }, generator::wide,
+				cachedTokenizing());
+	}
+
+	@Test
+	/**
+	 * Verifies that the work of parsing deeply nested parentheses scales within the bounds, for the memoizing parser
+	 * and for a cached tokenizing parser.
+	 */
+	public void testParseDepth () throws Exception {
+		final ExpressionGenerator generator = new ExpressionGenerator(SEED);
+		assertReads("memoized parse of nested parentheses", MEMOIZED_BOUND, new int[] { 8, 16, 32, 64 }, generator::nested,
+				new SimpleExpressionParser(true));
+		assertReads("cached tokenizing parse of nested parentheses", LINEAR_BOUND, new int[] { 100, 200, 400, 800 }, generator::nested,
+				cachedTokenizing());
+	}
+
+	@Test
+	/**
+	 * Verifies that the time to parse wide sums and nested parentheses scales within the bounds.
+	 * Only runs when the scaling.timing system property is true.
+	 */
+	public void testParseTime () throws Exception {
+		Assume.assumeTrue(Boolean.getBoolean(TIMING_PROPERTY));
+		final ExpressionGenerator generator = new ExpressionGenerator(SEED);
+		assertTime("memoized parse of wide sums", MEMOIZED_BOUND, new int[] { 8, 16, 32, 64 }, generator::wide,
+				new SimpleExpressionParser(true));
+		assertTime("cached tokenizing parse of wide sums", LINEAR_BOUND, new int[] { 1000, 2000, 4000, 8000 }, generator::wide,
+				cachedTokenizing());
+		assertTime("memoized parse of nested parentheses", MEMOIZED_BOUND, new int[] { 8, 16, 32, 64 }, generator::nested,
+				new SimpleExpressionParser(true));
+		assertTime("cached tokenizing parse of nested parentheses", LINEAR_BOUND, new int[] { 100, 200, 400, 800 }, generator::nested,
+				cachedTokenizing());
+	}
+
+	@Test
+	/**
+	 * Verifies that the work of flattening left-nested chains, as the grammar builds them, scales linearly with their
+	 * number of literals. The work is the number of times a subexpression is given a new parent.
+	 */
+	public void testFlatten () {
+		final int[] sizes = new int[] { 500, 1000, 2000, 4000 };
+		final double[] moves = new double[sizes.length];
+		for (int i = 0; i < sizes.length; i++) {
+			final long[] counter = new long[1];
+			final Expression chain = chain(sizes[i], counter);
+			counter[0] = 0;
+			chain.flatten();
+			moves[i] = counter[0];
+			assertEquals(sizes[i] / 4 * 2, ((AbstractCompoundExpression) chain).getSubexpressions().size());
+		}
+		assertExponent("flatten of nested chains", LINEAR_BOUND, sizes, moves, " moves", 1);
+	}
+
+	@Test
+	/**
+	 * Verifies that the time to flatten an unflattened tree scales linearly with its number of literals.
+	 * Only runs when the scaling.timing system property is true.
+	 */
+	public void testFlattenTime () throws Exception {
+		Assume.assumeTrue(Boolean.getBoolean(TIMING_PROPERTY));
+		final TokenizingExpressionParser parser = new TokenizingExpressionParser();
+		final int[] widths = { 10, 14, 20, 28 };
+		final Expression[] trees = new Expression[widths.length];
+		final int[] sizes = new int[widths.length];
+		for (int i = 0; i < widths.length; i++) {
+			trees[i] = parser.parse(new ExpressionGenerator(SEED).complete(widths[i], 2), false);
+			sizes[i] = widths[i] * widths[i] * widths[i];
+		}
+		final double[] nanos = new double[sizes.length];
+		for (int i = 0; i < sizes.length; i++) {
+			final Expression tree = trees[i];
+			final TimedRun run = () -> {
+				final Expression unflattened = ExpressionGenerator.unflattened(tree);
+				final long start = System.nanoTime();
+				unflattened.flatten();
+				final long elapsed = System.nanoTime() - start;
+				assertEquals(tree, unflattened);
+				return elapsed;
+			};
+			if (i == 0)
+				warmUp(run);
+			nanos[i] = fastestRun(run);
+		}
+		assertExponent("flatten", LINEAR_BOUND, sizes, nanos, "us", 1000);
+	}
+
+	@Test
+	/**
+	 * Verifies that the generator is deterministic and only produces expressions in the grammar.
+	 */
+	public void testGenerator () throws ExpressionParseException {
+		assertEquals(new ExpressionGenerator(SEED, 0.3, 25).random(6, 4), new ExpressionGenerator(SEED, 0.3, 25).random(6, 4));
+		final ExpressionGenerator generator = new ExpressionGenerator(SEED, 0.3, 25);
+		final String[] expressions = { generator.wide(50), generator.nested(20), generator.random(6, 4), generator.complete(3, 3) };
+		for (String expression : expressions) {
+			assertTrue(expression, expression.matches("[0-9a-z+*()]+"));
+			assertEquals(new TokenizingExpressionParser().parse(expression, false).convertToString(0),
+					new SimpleExpressionParser(true).parse(expression, false).convertToString(0));
+		}
+		assertEquals(81, new ExpressionGenerator(SEED, 1, 1).complete(3, 3).replaceAll("[^a-z]", "").length());
+	}
+
+	/**
+	 * Creates a CachingExpressionParser in front of a TokenizingExpressionParser, as the editor's Parse button uses.
+	 * It is built here rather than taken from the editor, so the test runs without JavaFX.
+	 * @return a new parser
+	 */
+	private static ExpressionParser cachedTokenizing () {
+		return new CachingExpressionParser(new TokenizingExpressionParser(), PARSE_CACHE_SIZE);
+	}
+
+	/**
+	 * Builds an unflattened sum of literals and products in the shape the grammar parses it, e.g. a+(b*c)*d+e+...,
+	 * where every sum and product has two operands and nests to the left. The literals count every new parent they
+	 * are given.
+	 * @param literals number of literals, a multiple of 4: each pair of terms is a literal and a product of three
+	 * @param counter the counter the literals increment
+	 * @return the root of the chain
+	 */
+	private static Expression chain (int literals, long[] counter) {
+		Expression sum = null;
+		for (int i = 0; i < literals; i += 4) {
+			Expression product = new CountingLiteral("x", counter);
+			for (int j = 1; j < 3; j++)
+				product = pair(new MultiplicativeCompoundExpression(), product, new CountingLiteral(Integer.toString(i + j), counter));
+			final Expression literal = new CountingLiteral(Integer.toString(i), counter);
+			sum = sum == null ? literal : pair(new AdditiveCompoundExpression(), sum, literal);
+			sum = pair(new AdditiveCompoundExpression(), sum, product);
+		}
+		return sum;
+	}
+
+	private static Expression pair (AbstractCompoundExpression compound, Expression left, Expression right) {
+		compound.addSubexpression(left);
+		compound.addSubexpression(right);
+		return compound;
+	}
+
+	/**
+	 * Counts the characters a parser reads while parsing generated inputs of growing size and checks the growth of
+	 * that count against a bound. Sizes are measured in characters of input.
+	 * @param name the workload, for the failure message
+	 * @param bound the largest acceptable exponent
+	 * @param parameters the generator parameter of each size, in increasing order
+	 * @param generate generates the input for a parameter
+	 * @param parser the parser to measure
+	 */
+	private static void assertReads (String name, double bound, int[] parameters, IntFunction<String> generate, ExpressionParser parser) throws Exception {
+		final int[] sizes = new int[parameters.length];
+		final double[] reads = new double[parameters.length];
+		for (int i = 0; i < parameters.length; i++) {
+			final CountingSequence input = new CountingSequence(generate.apply(parameters[i]));
+			sizes[i] = input.length();
+			parser.parse(input, 0, input.length(), false);
+			reads[i] = input.reads;
+		}
+		assertExponent(name, bound, sizes, reads, " reads", 1);
+	}
+
+	/**
+	 * Times parsing generated inputs of growing size and checks the growth of the parse time against a bound.
+	 * Sizes are measured in characters of input.
+	 * @param name the workload, for the failure message
+	 * @param bound the largest acceptable exponent
+	 * @param parameters the generator parameter of each size, in increasing order
+	 * @param generate generates the input for a parameter
+	 * @param parser the parser to time
+	 */
+	private static void assertTime (String name, double bound, int[] parameters, IntFunction<String> generate, ExpressionParser parser) throws Exception {
+		final int[] sizes = new int[parameters.length];
+		final double[] nanos = new double[parameters.length];
+		for (int i = 0; i < parameters.length; i++) {
+			final String input = generate.apply(parameters[i]);
+			sizes[i] = input.length();
+			final TimedRun run = () -> {
+				final long start = System.nanoTime();
+				parser.parse(input, false);
+				return System.nanoTime() - start;
+			};
+			if (i == 0)
+				warmUp(run);
+			nanos[i] = fastestRun(run);
+		}
+		assertExponent(name, bound, sizes, nanos, "us", 1000);
+	}
+
+	/**
+	 * Fits the growth exponent of costs against sizes and fails if it exceeds a bound.
+	 * @param name the workload, for the failure message
+	 * @param bound the largest acceptable exponent
+	 * @param sizes the input sizes
+	 * @param costs the cost measured at each size
+	 * @param unit the unit of the costs as reported in the failure message
+	 * @param scale the number of measured units per reported unit
+	 */
+	private static void assertExponent (String name, double bound, int[] sizes, double[] costs, String unit, double scale) {
+		double meanX = 0, meanY = 0;
+		for (int i = 0; i < sizes.length; i++) {
+			meanX += Math.log(sizes[i]) / sizes.length;
+			meanY += Math.log(costs[i]) / sizes.length;
+		}
+		double covariance = 0, variance = 0;
+		final StringBuilder measurements = new StringBuilder();
+		for (int i = 0; i < sizes.length; i++) {
+			final double x = Math.log(sizes[i]) - meanX;
+			covariance += x * (Math.log(costs[i]) - meanY);
+			variance += x * x;
+			measurements.append(String.format(" %d:%.0f%s", sizes[i], costs[i] / scale, unit));
+		}
+		final double exponent = covariance / variance;
+		assertTrue(String.format("%s grows as size^%.2f, above the bound of %.2f;%s", name, exponent, bound, measurements),
+				exponent <= bound);
+	}
+
+	/**
+	 * Runs an operation for WARMUP_NANOS, so that it is compiled before the smallest size is timed.
+	 * @param run performs the operation once
+	 */
+	private static void warmUp (TimedRun run) throws Exception {
+		final long start = System.nanoTime();
+		while (System.nanoTime() - start < WARMUP_NANOS)
+			run.time();
+	}
+
+	/**
+	 * Runs a timed operation until it ran at least MIN_RUNS times and for MIN_NANOS_PER_SIZE in total.
+	 * @param run performs the operation once and returns the nanoseconds the measured part took
+	 * @return the fastest run, in nanoseconds
+	 */
+	private static double fastestRun (TimedRun run) throws Exception {
+		long fastest = Long.MAX_VALUE, total = 0;
+		for (int runs = 0; runs < MIN_RUNS || total < MIN_NANOS_PER_SIZE; runs++) {
+			final long nanos = run.time();
+			if (nanos > RUN_LIMIT_NANOS)
+				fail("A single run took " + nanos / 1_000_000 + " ms; the operation is not scaling polynomially");
+			fastest = Math.min(fastest, nanos);
+			total += nanos;
+		}
+		return fastest;
+	}
+
+	/**
+	 * One run of a timed operation.
+	 */
+	private interface TimedRun {
+		long time() throws Exception;
+	}
+
+	/**
+	 * A literal that counts how many times it is given a parent.
+	 */
+	private static class CountingLiteral extends TerminalExpression {
+		final private long[] counter;
+
+		CountingLiteral(String value, long[] counter) {
+			super(value);
+			this.counter = counter;
+		}
+
+		@Override
+		public void setParent(CompoundExpression parent) {
+			counter[0]++;
+			super.setParent(parent);
+		}
+	}
+
+	/**
+	 * An input that counts how many characters are read from it, and fails the test once a parse reads more than
+	 * READ_LIMIT. Copies made by subSequence or toString (e.g. for error messages) are not counted.
+	 */
+	private static class CountingSequence implements CharSequence {
+		final private String text;
+		private long reads = 0;
+
+		CountingSequence(String text) {
+			this.text = text;
+		}
+
+		@Override
+		public int length() {
+			return text.length();
+		}
+
+		@Override
+		public char charAt(int index) {
+			if (++reads > READ_LIMIT)
+				fail("A single parse read more than " + READ_LIMIT + " characters; it is not scaling polynomially");
+			return text.charAt(index);
+		}
+
+		@Override
+		public CharSequence subSequence(int start, int end) {
+			return text.subSequence(start, end);
+		}
+
+		@Override
+		public String toString() {
+			return text;
+		}
+	}
+}
@@ -0,0 +1,429 @@
+import javafx.beans.InvalidationListener;
+import javafx.geometry.Bounds;
+import javafx.geometry.Point2D;
+import javafx.scene.Node;
+import javafx.scene.layout.*;
+import javafx.scene.paint.Color;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * JavaFX rendering of a headless expression tree. Every compound expression is drawn as an HBox holding its
+ * children's nodes, separated by operator labels (or surrounded by parentheses); every terminal is drawn as a
+ * ReferenceLabel. The view keeps the mapping from expressions to their nodes so the editor never has to store
+ * JavaFX state in the model.
+ * Hit tests use a per-compound index of its children's bounds, built on first use and dropped whenever one of
+ * the children is laid out again.
+ * A view can be given a node budget so that very large trees stay responsive: compound expressions are expanded
+ * breadth first until the budget is spent and the rest are drawn as a single collapsed placeholder, and wide
+ * compound expressions only show their first children followed by a placeholder for the remainder. The path to
+ * the focused and ghosting expressions is always rendered. Placeholders are expanded on demand with reveal().
+ */
+public class ExpressionView {
+	/**
+	 * Border for showing a focused expression
+	 */
+	public static final Border RED_BORDER = new Border(
+	  new BorderStroke(Color.RED, BorderStrokeStyle.SOLID, CornerRadii.EMPTY, BorderWidths.DEFAULT)
+	);
+
+	/**
+	 * Border for showing a non-focused expression
+	 */
+	public static final Border NO_BORDER = null;
+
+	/**
+	 * Text of the placeholder for children that are not rendered yet
+	 */
+	private static final String ELLIPSIS = "\u2026";
+
+	final private Expression root;
+	final private int chunkSize;
+	final private Map<Expression, Region> nodes = new IdentityHashMap<>();
+	final private Map<AbstractCompoundExpression, ChildIndex> childIndexes = new IdentityHashMap<>();
+	/**
+	 * Number of leading children rendered for every expanded compound expression; collapsed ones are absent.
+	 */
+	final private Map<AbstractCompoundExpression, Integer> shownCounts = new IdentityHashMap<>();
+	/**
+	 * Placeholder at the end of every compound expression that does not show all of its children.
+	 */
+	final private Map<AbstractCompoundExpression, ReferenceLabel> moreLabels = new IdentityHashMap<>();
+
+	/**
+	 * Builds the JavaFX nodes for an entire expression tree.
+	 * @param root the expression to render
+	 */
+	public ExpressionView(Expression root) {
+		this(root, Integer.MAX_VALUE, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Builds the JavaFX nodes for at most about nodeBudget expressions of a tree.
+	 * @param root the expression to render
+	 * @param nodeBudget number of expressions to render before collapsing the remaining compound expressions
+	 * @param chunkSize number of children of a compound expression rendered at once
+	 */
+	public ExpressionView(Expression root, int nodeBudget, int chunkSize) {
+		this.root = root;
+		this.chunkSize = chunkSize;
+		if(root instanceof AbstractCompoundExpression)
+			planExpansion((AbstractCompoundExpression) root, nodeBudget);
+		build(root);
+	}
+
+	/**
+	 * Decides how many children of each compound expression to render, breadth first, so that shallow structure is
+	 * shown before deep structure.
+	 * @param compoundRoot the root of the tree
+	 * @param nodeBudget number of expressions to render
+	 */
+	private void planExpansion(AbstractCompoundExpression compoundRoot, int nodeBudget) {
+		pin(compoundRoot.findFocus());
+		pin(compoundRoot.findGhost());
+		final ArrayDeque<AbstractCompoundExpression> queue = new ArrayDeque<>();
+		queue.add(compoundRoot);
+		int remaining = nodeBudget;
+		while(!queue.isEmpty()) {
+			final AbstractCompoundExpression compound = queue.poll();
+			final Integer pinned = shownCounts.get(compound);
+			if(pinned == null && remaining <= 0 && compound != compoundRoot)
+				continue; //collapsed
+			final List<Expression> children = compound.getSubexpressions();
+			final int count = Math.max(pinned == null ? 0 : pinned, Math.min(children.size(), chunkSize));
+			shownCounts.put(compound, count);
+			remaining -= count;
+			for(int i = 0; i < count; i++) {
+				if(children.get(i) instanceof AbstractCompoundExpression)
+					queue.add((AbstractCompoundExpression) children.get(i));
+			}
+		}
+	}
+
+	/**
+	 * Makes sure every ancestor of an expression renders it.
+	 * The path is walked down from this view's root: a permutation shares nodes with the tree it was built from, and
+	 * their parent pointers still lead into that tree until it is adopted. Only the child indexes along the parent
+	 * pointers are used, and the expression itself is looked up by identity, since its siblings may be reordered.
+	 * @param expression the expression that must be rendered, or null
+	 */
+	private void pin(Expression expression) {
+		if(expression == null)
+			return;
+		final ArrayDeque<Integer> path = new ArrayDeque<>();
+		for(Expression node = expression; node.getParent() != null; node = node.getParent())
+			path.push(((AbstractCompoundExpression) node.getParent()).indexOfSubexpression(node));
+		Expression node = root;
+		while(node != expression && node instanceof AbstractCompoundExpression && !path.isEmpty()) {
+			final AbstractCompoundExpression compound = (AbstractCompoundExpression) node;
+			final int pathIndex = path.pop();
+			final int directIndex = compound.indexOfSubexpression(expression);
+			final int index = directIndex >= 0 ? directIndex : pathIndex;
+			if(index < 0 || index >= compound.getSubexpressions().size())
+				return;
+			shownCounts.merge(compound, index + 1, Math::max);
+			node = compound.getSubexpressions().get(index);
+		}
+	}
+
+	/**
+	 * Recursively creates the node for an expression and its subexpressions.
+	 * @param expression the expression to render
+	 * @return the node representing expression
+	 */
+	private Region build(Expression expression) {
+		final Region node;
+		if(expression instanceof AbstractCompoundExpression) {
+			final AbstractCompoundExpression compound = (AbstractCompoundExpression) expression;
+			final Integer shown = shownCounts.get(compound);
+			if(shown == null) {
+				node = new ReferenceLabel(compound.getOperation().equals("()") ? "(" + ELLIPSIS + ")" : ELLIPSIS, compound);
+			} else {
+				final HBox box = new HBox();
+				final List<Node> row = buildChildren(compound, 0, shown);
+				if(compound.getOperation().equals("()")) {
+					row.add(0, new ReferenceLabel("(", null));
+					row.add(new ReferenceLabel(")", null));
+				}
+				if(shown < compound.getSubexpressions().size())
+					row.add(createMoreLabel(compound));
+				box.getChildren().setAll(row);
+				node = box;
+			}
+		} else {
+			node = new ReferenceLabel(((TerminalExpression) expression).getText(), expression);
+		}
+		node.setBorder(expression.isFocused() ? RED_BORDER : NO_BORDER);
+		node.setOpacity(isGhost(expression) ? 0.5 : 1);
+		nodes.put(expression, node);
+		return node;
+	}
+
+	/**
+	 * Returns whether an expression is drawn as ghosting: either its own flag is set, or it is the ghost tracked by
+	 * the root, as in a permutation that shares its ghost with the tree it was built from.
+	 * @param expression an expression in this view's tree
+	 * @return true if the expression should be drawn at half opacity
+	 */
+	private boolean isGhost(Expression expression) {
+		return expression.isGhost()
+		  || (root instanceof AbstractCompoundExpression && ((AbstractCompoundExpression) root).findGhost() == expression);
+	}
+
+	/**
+	 * Builds the nodes for a range of a compound expression's children with the signs between them, in display
+	 * order, so the caller can add them to the HBox in a single change instead of one insertion per node.
+	 * @param compound the expression being rendered
+	 * @param from index of the first child to render
+	 * @param to index just past the last child to render
+	 * @return the children's nodes, each preceded by an operator label unless it is the very first child
+	 */
+	private List<Node> buildChildren(AbstractCompoundExpression compound, int from, int to) {
+		final List<Expression> children = compound.getSubexpressions();
+		final String operation = compound.getOperation();
+		final InvalidationListener invalidateIndex = observable -> childIndexes.remove(compound);
+		final List<Node> row = new ArrayList<>(2 * (to - from) + 2);
+		for(int i = from; i < to; i++) {
+			if(i > 0)
+				row.add(new ReferenceLabel(operation, null));
+			final Region childNode = build(children.get(i));
+			childNode.boundsInParentProperty().addListener(invalidateIndex);
+			row.add(childNode);
+		}
+		return row;
+	}
+
+	/**
+	 * Creates the placeholder standing for the children of a compound expression that are not rendered yet.
+	 * @param compound the expression being rendered
+	 * @return the placeholder, to be placed after the rendered children
+	 */
+	private ReferenceLabel createMoreLabel(AbstractCompoundExpression compound) {
+		final ReferenceLabel more = new ReferenceLabel(compound.getOperation() + ELLIPSIS, null);
+		moreLabels.put(compound, more);
+		return more;
+	}
+
+	/**
+	 * Returns whether a compound expression is drawn as a collapsed placeholder.
+	 * @param compound an expression in this view's tree
+	 * @return true if none of its children are rendered
+	 */
+	public boolean isCollapsed(AbstractCompoundExpression compound) {
+		return !shownCounts.containsKey(compound);
+	}
+
+	/**
+	 * Returns how many children of a compound expression are rendered; they are always its leading children.
+	 * @param compound an expression in this view's tree
+	 * @return the number of rendered children, 0 if the expression is collapsed
+	 */
+	public int getRenderedChildCount(AbstractCompoundExpression compound) {
+		final Integer shown = shownCounts.get(compound);
+		return shown == null ? 0 : shown;
+	}
+
+	/**
+	 * Renders more of a compound expression if the mouse is over one of its placeholders: a collapsed expression
+	 * is expanded, and a truncated one shows its next chunk of children.
+	 * @param compound a rendered expression in this view's tree
+	 * @param mouseX Mouse scene-relative X
+	 * @param mouseY Mouse scene-relative y
+	 * @return true if more of the expression was rendered
+	 */
+	public boolean reveal(AbstractCompoundExpression compound, double mouseX, double mouseY) {
+		if(isCollapsed(compound)) {
+			final Bounds bounds = computeBounds(compound);
+			if(bounds == null || !bounds.contains(mouseX, mouseY))
+				return false;
+			expand(compound);
+			return true;
+		}
+		final ReferenceLabel more = moreLabels.get(compound);
+		if(more == null || !more.localToScene(more.getBoundsInLocal()).contains(mouseX, mouseY))
+			return false;
+		showMore(compound);
+		return true;
+	}
+
+	/**
+	 * Replaces the placeholder of a collapsed compound expression by its first chunk of children.
+	 * @param compound a collapsed expression whose parent is rendered
+	 */
+	private void expand(AbstractCompoundExpression compound) {
+		final Region placeholder = nodes.get(compound);
+		final AbstractCompoundExpression parent = (AbstractCompoundExpression) compound.getParent();
+		shownCounts.put(compound, Math.min(compound.getSubexpressions().size(), chunkSize));
+		final Region expanded = build(compound);
+		final List<Node> siblings = ((HBox) nodes.get(parent)).getChildren();
+		siblings.set(siblings.indexOf(placeholder), expanded);
+		expanded.boundsInParentProperty().addListener(observable -> childIndexes.remove(parent));
+		childIndexes.remove(parent);
+	}
+
+	/**
+	 * Renders the next chunk of children of a truncated compound expression in place of its placeholder.
+	 * @param compound an expanded expression that does not show all of its children
+	 */
+	private void showMore(AbstractCompoundExpression compound) {
+		final List<Expression> children = compound.getSubexpressions();
+		final int shown = shownCounts.get(compound);
+		final int count = (int) Math.min(children.size(), (long) shown + chunkSize);
+		final List<Node> boxChildren = ((HBox) nodes.get(compound)).getChildren();
+		moreLabels.remove(compound);
+		shownCounts.put(compound, count);
+		final List<Node> row = buildChildren(compound, shown, count);
+		if(count < children.size())
+			row.add(createMoreLabel(compound));
+		//The placeholder is always last; replace it, then append the rest with a single addAll
+		boxChildren.set(boxChildren.size() - 1, row.get(0));
+		boxChildren.addAll(row.subList(1, row.size()));
+		childIndexes.remove(compound);
+	}
+
+	/**
+	 * Returns the rendered expression.
+	 * @return the root expression of this view
+	 */
+	public Expression getExpression() {
+		return root;
+	}
+
+	/**
+	 * Returns the JavaFX node of the whole tree.
+	 * @return the root expression's node
+	 */
+	public Region getNode() {
+		return nodes.get(root);
+	}
+
+	/**
+	 * Returns the JavaFX node associated with an expression of this tree.
+	 * @param expression an expression in this view's tree
+	 * @return the expression's node, or null if it is not part of this view or not rendered
+	 */
+	public Region getNode(Expression expression) {
+		return nodes.get(expression);
+	}
+
+	/**
+	 * Calculates the scene-relative bounds of an expression.
+	 * @param expression an expression in this view's tree
+	 * @return scene-relative bounds, or null if the expression is not rendered
+	 */
+	public Bounds computeBounds(Expression expression) {
+		final Node node = getNode(expression);
+		if(node == null)
+			return null;
+		return node.localToScene(node.getBoundsInLocal());
+	}
+
+	/**
+	 * Sets whether an expression is ghosting, and draws it at half opacity if so.
+	 * @param expression an expression in this view's tree
+	 * @param ghost true if ghosting should be enabled
+	 */
+	public void setGhost(Expression expression, boolean ghost) {
+		expression.setGhost(ghost);
+		final Region node = getNode(expression);
+		if(node != null)
+			node.setOpacity(ghost ? 0.5 : 1);
+	}
+
+	/**
+	 * Sets whether an expression is focused, and draws a border around it if so.
+	 * @param expression an expression in this view's tree
+	 * @param focused true if the expression should be focused
+	 */
+	public void setFocused(Expression expression, boolean focused) {
+		expression.setFocused(focused);
+		final Region node = getNode(expression);
+		if(node != null)
+			node.setBorder(focused ? RED_BORDER : NO_BORDER);
+	}
+
+	/**
+	 * See if there's a deeper focus inside a compound expression that contains the mouse's position.
+	 * @param expression the currently focused compound expression
+	 * @param mouseX Mouse scene-relative X
+	 * @param mouseY Mouse scene-relative y
+	 * @return A deeper focus if it exists.
+	 */
+	public Expression focusDeeper(AbstractCompoundExpression expression, double mouseX, double mouseY) {
+		//One transform into the HBox, then a binary search over its children
+		final Point2D local = getNode(expression).sceneToLocal(mouseX, mouseY);
+		ChildIndex index = childIndexes.get(expression);
+		if(index == null) {
+			index = new ChildIndex(expression);
+			childIndexes.put(expression, index);
+		}
+		return index.childAt(local.getX(), local.getY());
+	}
+
+	/**
+	 * Finds the deepest expression of this view whose node contains the mouse's position.
+	 * @param mouseX Mouse scene-relative X
+	 * @param mouseY Mouse scene-relative y
+	 * @return the deepest expression under the mouse, or null if the mouse is outside the whole tree
+	 */
+	public Expression deepestAt(double mouseX, double mouseY) {
+		final Bounds bounds = computeBounds(root);
+		if(bounds == null || !bounds.contains(mouseX, mouseY))
+			return null;
+		Expression deepest = root;
+		while(deepest instanceof AbstractCompoundExpression) {
+			final Expression child = focusDeeper((AbstractCompoundExpression) deepest, mouseX, mouseY);
+			if(child == null)
+				break;
+			deepest = child;
+		}
+		return deepest;
+	}
+
+	/**
+	 * The bounds of a compound expression's children relative to its HBox, in layout (left to right) order.
+	 */
+	private class ChildIndex {
+		final private Expression[] children;
+		final private double[] minX, maxX, minY, maxY;
+
+		/**
+		 * Measures the rendered children of a compound expression in their current layout.
+		 * @param compound the compound expression whose children to index
+		 */
+		ChildIndex(AbstractCompoundExpression compound) {
+			children = compound.getSubexpressions().subList(0, getRenderedChildCount(compound)).toArray(new Expression[0]);
+			minX = new double[children.length];
+			maxX = new double[children.length];
+			minY = new double[children.length];
+			maxY = new double[children.length];
+			for(int i = 0; i < children.length; i++) {
+				final Bounds bounds = getNode(children[i]).getBoundsInParent();
+				minX[i] = bounds.getMinX();
+				maxX[i] = bounds.getMaxX();
+				minY[i] = bounds.getMinY();
+				maxY[i] = bounds.getMaxY();
+			}
+		}
+
+		/**
+		 * Finds the child containing a point, in O(log n).
+		 * @param x x relative to the compound's HBox
+		 * @param y y relative to the compound's HBox
+		 * @return the child containing the point, or null if it falls on a sign or outside every child
+		 */
+		Expression childAt(double x, double y) {
+			int index = Arrays.binarySearch(minX, x);
+			if(index < 0)
+				index = -index - 2; //the last child starting left of x
+			if(index < 0 || x > maxX[index] || y < minY[index] || y > maxY[index])
+				return null;
+			return children[index];
+		}
+	}
+}
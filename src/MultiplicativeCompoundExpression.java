@@ -1,15 +1,10 @@
 public class MultiplicativeCompoundExpression extends AbstractCompoundExpression {
 
-    final private boolean withJavaControls;
-
     /**
      * Create a new MultiplicativeCompoundExpression with the "*" operator
-     * @param withJavaControls enables on-screen Node creation
      */
-    MultiplicativeCompoundExpression(boolean withJavaControls) {
-        super("*", withJavaControls);
-        this.withJavaControls = withJavaControls;
-
+    MultiplicativeCompoundExpression() {
+        super("*");
     }
 
     /**
@@ -17,6 +12,6 @@ public class MultiplicativeCompoundExpression extends AbstractCompoundExpression
      * @return an instance of MultiplicativeCompoundExpression
      */
     public AbstractCompoundExpression createSelf() {
-        return new MultiplicativeCompoundExpression(withJavaControls);
+        return new MultiplicativeCompoundExpression();
     }
 }
\ No newline at end of file
@@ -1,5 +1,10 @@
 class NoMoreCombinationsException extends Exception {
+    /**
+     * Signals that a placement is out of range. No stack trace is captured, since callers treat this as an
+     * expected outcome rather than a bug.
+     * @param message the detail message
+     */
     public NoMoreCombinationsException(String message) {
-        super(message);
+        super(message, null, false, false);
     }
 }
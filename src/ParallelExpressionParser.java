@@ -0,0 +1,162 @@
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * An ExpressionParser for very large expressions. A single scan finds the operators outside of any parentheses:
+ * the top-level + signs, or the top-level * signs if there are none. The terms between them are independent, so
+ * they are grouped into spans of about the split threshold, parsed on a ForkJoinPool by a TokenizingExpressionParser,
+ * and assembled into one flattened sum or product.
+ * Inputs shorter than the threshold, and inputs without a top-level operator, are parsed sequentially. If any span
+ * fails to parse, the whole input is parsed again sequentially so that the error is the one it would report.
+ */
+public class ParallelExpressionParser implements ExpressionParser {
+	/**
+	 * Default number of characters parsed by a single task
+	 */
+	private static final int DEFAULT_THRESHOLD = 1 << 16;
+
+	final private ForkJoinPool pool;
+	final private int threshold;
+	final private ExpressionParser delegate = new TokenizingExpressionParser();
+
+	/**
+	 * Creates a parser that runs on the common ForkJoinPool.
+	 */
+	public ParallelExpressionParser() {
+		this(ForkJoinPool.commonPool(), DEFAULT_THRESHOLD);
+	}
+
+	/**
+	 * Creates a parser that runs on the specified pool.
+	 * @param pool the pool to parse spans on
+	 * @param threshold number of characters below which an input (or a group of terms) is parsed by a single task
+	 */
+	public ParallelExpressionParser(ForkJoinPool pool, int threshold) {
+		this.pool = pool;
+		this.threshold = Math.max(1, threshold);
+	}
+
+	/**
+	 * Attempts to create an expression tree -- flattened as much as possible -- from the specified String.
+	 * Throws a ExpressionParseException if the specified string cannot be parsed; its error offset is the
+	 * position of the offending character in the original string.
+	 * @param str the string to parse into an expression tree
+	 * @param withJavaFXControls retained for compatibility; the tree is always headless (render it with an ExpressionView)
+	 * @return the Expression object representing the parsed expression tree
+	 */
+	public Expression parse (String str, boolean withJavaFXControls) throws ExpressionParseException {
+		return parse(str, 0, str.length(), withJavaFXControls);
+	}
+
+	/**
+	 * Parses the [start, end) span of a character sequence without copying it.
+	 * @param input the character sequence containing the expression
+	 * @param start start offset of the expression (inclusive)
+	 * @param end end offset of the expression (exclusive)
+	 * @param withJavaFXControls retained for compatibility; the tree is always headless (render it with an ExpressionView)
+	 * @return the Expression object representing the parsed expression tree
+	 */
+	public Expression parse (CharSequence input, int start, int end, boolean withJavaFXControls) throws ExpressionParseException {
+		if(end - start <= threshold)
+			return delegate.parse(input, start, end, withJavaFXControls);
+		char operation = '+';
+		int[] bounds = groupTerms(input, start, end, operation);
+		if(bounds == null) {
+			operation = '*';
+			bounds = groupTerms(input, start, end, operation);
+		}
+		if(bounds == null || bounds.length == 2)
+			return delegate.parse(input, start, end, withJavaFXControls);
+
+		final int groups = bounds.length - 1;
+		final Expression[] results = new Expression[groups];
+		pool.invoke(new GroupTask(input, bounds, results, 0, groups));
+		final CompoundExpression root = operation == '+' ? new AdditiveCompoundExpression() : new MultiplicativeCompoundExpression();
+		for(Expression result : results) {
+			if(result == null) {
+				//Report the same error as a sequential parse would
+				return delegate.parse(input, start, end, withJavaFXControls);
+			}
+			root.addSubexpression(result);
+		}
+		// Splice the groups' own sums or products into the root
+		root.flatten();
+		return root;
+	}
+
+	/**
+	 * Splits a span at its top-level operators and groups consecutive terms into spans of about threshold characters.
+	 * @param input the character sequence containing the expression
+	 * @param start start offset of the expression (inclusive)
+	 * @param end end offset of the expression (exclusive)
+	 * @param operation the operator to split at, + or *
+	 * @return the group boundaries: group i is [bounds[i], bounds[i + 1] - 1), every boundary but the first and last
+	 *         following an operator (a single group if the terms are too short to split); or null if there is no
+	 *         top-level operator or the parentheses are unbalanced
+	 */
+	private int[] groupTerms(CharSequence input, int start, int end, char operation) {
+		int[] bounds = new int[16];
+		bounds[0] = start;
+		int count = 1;
+		int depth = 0;
+		int groupStart = start;
+		boolean split = false;
+		for(int i = start; i < end; i++) {
+			final char c = input.charAt(i);
+			if(c == '(') {
+				depth++;
+			} else if(c == ')') {
+				if(--depth < 0)
+					return null;
+			} else if(c == operation && depth == 0) {
+				split = true;
+				if(i + 1 - groupStart < threshold)
+					continue;
+				if(count == bounds.length)
+					bounds = Arrays.copyOf(bounds, 2 * count);
+				bounds[count++] = i + 1;
+				groupStart = i + 1;
+			}
+		}
+		if(depth != 0 || !split)
+			return null;
+		if(count == bounds.length)
+			bounds = Arrays.copyOf(bounds, count + 1);
+		//The end acts as the operator after the last group
+		bounds[count++] = end + 1;
+		return Arrays.copyOf(bounds, count);
+	}
+
+	/**
+	 * Parses a range of groups, splitting the range between the pool's threads.
+	 */
+	private class GroupTask extends RecursiveAction {
+		final private CharSequence input;
+		final private int[] bounds;
+		final private Expression[] results;
+		final private int from, to;
+
+		GroupTask(CharSequence input, int[] bounds, Expression[] results, int from, int to) {
+			this.input = input;
+			this.bounds = bounds;
+			this.results = results;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if(to - from > 1) {
+				final int middle = (from + to) >>> 1;
+				invokeAll(new GroupTask(input, bounds, results, from, middle), new GroupTask(input, bounds, results, middle, to));
+				return;
+			}
+			try {
+				results[from] = delegate.parse(input, bounds[from], bounds[from + 1] - 1, false);
+			} catch (ExpressionParseException epe) {
+				results[from] = null;
+			}
+		}
+	}
+}
@@ -0,0 +1,94 @@
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Checks that ParallelExpressionParser builds the same trees and errors as TokenizingExpressionParser.
+ */
+public class ParallelExpressionParserTester {
+	private ExpressionParser _parser;
+	private ExpressionParser _reference;
+
+	@Before
+	/**
+	 * Instantiates the parser under test with a tiny threshold, so even short inputs are split
+	 */
+	public void setUp () {
+		_parser = new ParallelExpressionParser(new ForkJoinPool(4), 4);
+		_reference = new TokenizingExpressionParser();
+	}
+
+	@Test
+	/**
+	 * Verifies that random expressions parse into the same trees as the reference parser.
+	 */
+	public void testRandomMatchesReference () throws ExpressionParseException {
+		final Random random = new Random(2103);
+		for(int n = 0; n < 2000; n++) {
+			final StringBuilder builder = new StringBuilder();
+			appendRandom(builder, random, 4);
+			final String expressionStr = builder.toString();
+			assertEquals(expressionStr, _reference.parse(expressionStr, false).convertToString(0),
+			  _parser.parse(expressionStr, false).convertToString(0));
+		}
+	}
+
+	@Test
+	/**
+	 * Verifies that invalid inputs report the same error offset as the reference parser.
+	 */
+	public void testErrorOffset () {
+		final String[] expressions = { "1+2+3+4+", "+1+2+3+4", "1+2+#+4+5", "(1+2+3+4", "1+2)+3+4", "x*y*(z*)*w*v" };
+		for(String expressionStr : expressions) {
+			assertEquals(expressionStr, errorOffset(_reference, expressionStr), errorOffset(_parser, expressionStr));
+		}
+	}
+
+	@Test
+	/**
+	 * Verifies that a large sum is assembled into a single flattened node.
+	 */
+	public void testLargeExpression () throws ExpressionParseException {
+		final ExpressionParser parser = new ParallelExpressionParser(new ForkJoinPool(4), 256);
+		final StringBuilder builder = new StringBuilder("x");
+		for(int i = 0; i < 20000; i++)
+			builder.append("+(").append(i).append("*y+z)*").append(i % 10);
+		final AbstractCompoundExpression expression = (AbstractCompoundExpression) parser.parse(builder.toString(), false);
+		assertEquals(20001, expression.getSubexpressions().size());
+		assertSame(expression, expression.getSubexpressions().get(20000).getParent());
+		assertTrue(expression.isNormalized());
+		assertEquals(_reference.parse(builder.toString(), false).convertToString(0), expression.convertToString(0));
+	}
+
+	private static void appendRandom (StringBuilder builder, Random random, int depth) {
+		final int choice = depth == 0 ? 3 + random.nextInt(2) : random.nextInt(5);
+		if(choice < 2) {
+			final int terms = 2 + random.nextInt(4);
+			for(int i = 0; i < terms; i++) {
+				if(i > 0)
+					builder.append(choice == 0 ? '+' : '*');
+				appendRandom(builder, random, depth - 1);
+			}
+		} else if(choice == 2) {
+			builder.append('(');
+			appendRandom(builder, random, depth - 1);
+			builder.append(')');
+		} else if(choice == 3) {
+			builder.append(random.nextInt(100));
+		} else {
+			builder.append((char) ('a' + random.nextInt(26)));
+		}
+	}
+
+	private static int errorOffset (ExpressionParser parser, String str) {
+		try {
+			parser.parse(str, false);
+		} catch (ExpressionParseException epe) {
+			return epe.getErrorOffset();
+		}
+		fail("Expected an ExpressionParseException for " + str);
+		return -1;
+	}
+}
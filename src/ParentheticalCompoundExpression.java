@@ -1,13 +1,10 @@
 public class ParentheticalCompoundExpression extends AbstractCompoundExpression {
 
-    final private boolean withJavaControls;
     /**
      * Create a new ParentheticalCompoundExpression with the "()" operator
-     * @param withJavaControls enables on-screen Node creation
      */
-    ParentheticalCompoundExpression(boolean withJavaControls) {
-        super("()", withJavaControls);
-        this.withJavaControls = withJavaControls;
+    ParentheticalCompoundExpression() {
+        super("()");
     }
 
     /**
@@ -15,6 +12,6 @@ public class ParentheticalCompoundExpression extends AbstractCompoundExpression
      * @return an instance of ParentheticalCompoundExpression
      */
     public AbstractCompoundExpression createSelf() {
-        return new ParentheticalCompoundExpression(withJavaControls);
+        return new ParentheticalCompoundExpression();
     }
 }
@@ -1,17 +1,22 @@
 import javafx.scene.control.Label;
 
 public class ReferenceLabel extends Label {
+    /**
+     * Style class of every ReferenceLabel, defined in expression.css
+     */
+    public static final String STYLE_CLASS = "reference-label";
+
     final private Expression expr;
 
     /**
-     * Creates a new "ReferenceLabel", a simple add-in to Label that configures the typeface and holds references to the parenting expresssion if ever needed
+     * Creates a new "ReferenceLabel", a simple add-in to Label that takes its typeface from the reference-label style class and holds references to the parenting expresssion if ever needed
      * @param label The text string to display
      * @param expr The associated expression
      */
     public ReferenceLabel(String label, Expression expr) {
         super(label);
         this.expr = expr;
-        this.setStyle("-fx-font: 30 \"serif\"; -fx-font-weight: bold;");
+        this.getStyleClass().add(STYLE_CLASS);
     }
 
     /**
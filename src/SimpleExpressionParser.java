@@ -1,4 +1,5 @@
-import java.util.function.Function;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.function.Supplier;
 
 /**
@@ -8,9 +9,38 @@ import java.util.function.Supplier;
  * M := M*M | X
  * X := (E) | L
  * L := [0-9]+ | [a-z]
+ * Every rule works on a [start, end) span of the input, trimmed of surrounding spaces, so no substrings are
+ * allocated while parsing. With memoization enabled, the result of each (rule, start, end) is remembered for the
+ * rest of the parse, so retried splits never re-parse a span.
+ * All per-call state lives in a ParseContext created by each parse, so one parser can be shared between threads.
  */
 public class SimpleExpressionParser implements ExpressionParser {
-	private boolean withJavaControls;
+	private static final int ADDITION = 0, MULTIPLICATION = 1, PARENTHETICAL = 2, TERMINAL = 3;
+
+	/**
+	 * Creators of the compound expressions built by parseSymbol
+	 */
+	private static final Supplier<CompoundExpression> NEW_ADDITIVE = AdditiveCompoundExpression::new,
+			NEW_MULTIPLICATIVE = MultiplicativeCompoundExpression::new;
+
+	final private boolean memoize;
+	private volatile MemoStats memoStats = new MemoStats(0, 0);
+
+	/**
+	 * Creates a parser that does not memoize intermediate results.
+	 */
+	public SimpleExpressionParser() {
+		this(false);
+	}
+
+	/**
+	 * Creates a parser, optionally in memoizing (packrat) mode.
+	 * @param memoize true to cache the result of every rule by its span of the input
+	 */
+	public SimpleExpressionParser(boolean memoize) {
+		this.memoize = memoize;
+	}
+
 	/**
 	 * Attempts to create an expression tree -- flattened as much as possible -- from the specified String.
          * Throws a ExpressionParseException if the specified string cannot be parsed.
@@ -19,109 +49,306 @@ public class SimpleExpressionParser implements ExpressionParser {
 	 * @return the Expression object representing the parsed expression tree
 	 */
 	public Expression parse (String str, boolean withJavaFXControls) throws ExpressionParseException {
-		// Remove spaces -- this simplifies the parsing logic
-		withJavaControls = withJavaFXControls;
-		str = str.replaceAll(" ", "");
-		final Expression expression = parseExpression(str);
+		return parse(str, 0, str.length(), withJavaFXControls);
+	}
+
+	/**
+	 * Parses the [start, end) span of a character sequence without copying it. Spaces are skipped while scanning.
+	 * @param input the character sequence containing the expression
+	 * @param start start offset of the expression (inclusive)
+	 * @param end end offset of the expression (exclusive)
+	 * @param withJavaFXControls retained for compatibility; the tree is always headless (render it with an ExpressionView)
+	 * @return the Expression object representing the parsed expression tree
+	 */
+	public Expression parse (CharSequence input, int start, int end, boolean withJavaFXControls) throws ExpressionParseException {
+		final Expression expression = parseExpression(input, start, end);
 		if (expression == null) {
 			// If we couldn't parse the string, then raise an error
-			throw new ExpressionParseException("Cannot parse expression: " + str);
+			throw new ExpressionParseException("Cannot parse expression: " + input.subSequence(start, end));
 		}
 
 		// Flatten the expression before returning
 		expression.flatten();
-		//Add signs
-		if(expression instanceof AbstractCompoundExpression) {
-			AbstractCompoundExpression absExpression = (AbstractCompoundExpression)expression;
-			absExpression.addSigns();
-		}
 		return expression;
 	}
 
 	/**
-	 * Begin the processing process, starting with parseAddition (for name consistency)
-	 * @param str equation to process
-	 * @return An expression, or null if invalid.
+	 * Returns the memo counters of the most recently completed parse. Hits and misses are published together, so
+	 * they always come from the same parse, even when other threads share this parser.
+	 * @return the memo counters, always 0 when memoization is disabled
 	 */
-	protected Expression parseExpression (String str) {
-		return parseAddition(str);
+	public MemoStats getMemoStats() {
+		return memoStats;
 	}
 
 	/**
-	 * Parse a given symbol (+ or *) using the recursive process on that text before that symbol and afterwards
-	 * @param input String to split
-	 * @param target A char representing our desired split symbol (+ or *)
-	 * @param newExp A function that, when called, will generate a new classs of CompoundExpressison (differentiated for Additive or Multiplicative)
-	 * @param firstHalf The function to run on the first half of the string before the symbol (String -> Expression)
-	 * @param secondHalf The function to run on the second half of the string after the symbol (String -> Expression)
-	 * @return the expression, or null if invalid.
+	 * Returns how many rule invocations of the most recently completed parse were answered from the memo table.
+	 * When the parser is shared between threads, use getMemoStats to read hits and misses of the same parse.
+	 * @return memo hits, always 0 when memoization is disabled
 	 */
-	private Expression parseSymbol(String input, char target, Supplier<CompoundExpression> newExp, Function<String, Expression> firstHalf, Function<String, Expression> secondHalf) {
-		for(int i = input.indexOf(target); i < input.length() - 1 && i > 0; i = input.indexOf(target, i+1)) {
-			final Expression firstExp = firstHalf.apply(input.substring(0, i));
-			final Expression secondExp = secondHalf.apply(input.substring(i+1));
-			if(	firstExp != null && secondExp != null) {
-				final CompoundExpression result = newExp.get();
-				result.addSubexpression(firstExp);
-				result.addSubexpression(secondExp);
-				return result;
-			}
-		}
-		return secondHalf.apply(input);
+	public int getMemoHits() {
+		return memoStats.getHits();
 	}
 
 	/**
-	 * Parse the addition operator, or just jump to multiplication
-	 * @param input String to parse
-	 * @return Expression representing input or null.
+	 * Returns how many rule invocations of the most recently completed parse had to be computed and stored in the memo table.
+	 * When the parser is shared between threads, use getMemoStats to read hits and misses of the same parse.
+	 * @return memo misses, always 0 when memoization is disabled
 	 */
-	private Expression parseAddition(String input) {
-		return parseSymbol(input, '+',
-				() -> new AdditiveCompoundExpression(withJavaControls),
-				this::parseAddition,
-				this::parseMultiplication
-		);
+	public int getMemoMisses() {
+		return memoStats.getMisses();
 	}
+
 	/**
-	 * Parse the multiplication operator, or just jump to parenthetical
-	 * @param input String to parse
-	 * @return Expression representing input or null.
+	 * Begin the processing process, starting with parseAddition (for name consistency)
+	 * @param str equation to process
+	 * @param start start offset of the equation (inclusive)
+	 * @param end end offset of the equation (exclusive)
+	 * @return An expression, or null if invalid.
 	 */
-	private Expression parseMultiplication(String input) {
-		return parseSymbol(input, '*',
-				() -> new MultiplicativeCompoundExpression(withJavaControls),
-				this::parseMultiplication,
-				this::parseParenthetical
-				);
+	protected Expression parseExpression (CharSequence str, int start, int end) {
+		final ParseContext context = new ParseContext(str, memoize);
+		final Expression expression = context.parseAddition(start, end);
+		memoStats = new MemoStats(context.memoHits, context.memoMisses);
+		return expression;
 	}
+
 	/**
-	 * Parse the parenthetical operator, or just jump to literal
-	 * @param input String to parse
-	 * @return Expression representing input or null.
+	 * The memo counters of one parse, published as a single immutable object.
 	 */
-	private Expression parseParenthetical(String input) {
-		if(input.length() >= 3) {
-			final char firstChar = input.charAt(0);
-			final char lastChar = input.charAt(input.length() - 1);
-			final String midSection = input.substring(1, input.length() - 1);
-			if (firstChar == '(' && lastChar == ')' && parseAddition(midSection) != null) {
-				CompoundExpression result = new ParentheticalCompoundExpression(withJavaControls);
-				result.addSubexpression(parseAddition(midSection));
-				return result;
-			}
+	public static final class MemoStats {
+		final private int hits;
+		final private int misses;
+
+		MemoStats(int hits, int misses) {
+			this.hits = hits;
+			this.misses = misses;
+		}
+
+		/**
+		 * Returns how many rule invocations were answered from the memo table.
+		 * @return memo hits
+		 */
+		public int getHits() {
+			return hits;
+		}
+
+		/**
+		 * Returns how many rule invocations had to be computed and stored in the memo table.
+		 * @return memo misses
+		 */
+		public int getMisses() {
+			return misses;
 		}
-		return parseTerminal(input);
 	}
+
 	/**
-	 * Parse literals (0-9, a-z), and confirm if the literal is valid.
-	 * @param input String to parse
-	 * @return Expression representing input or null.
+	 * The state of a single parse: its input and memo table. The grammar rules are methods of the context.
 	 */
-	private Expression parseTerminal(String input) {
-		final TerminalExpression result = new TerminalExpression(input, withJavaControls);
-		if(result.isValid)
+	private static class ParseContext {
+		final private CharSequence input;
+		final private boolean memoize;
+		final private Map<Long, Expression> memo;
+		private int memoHits = 0;
+		private int memoMisses = 0;
+
+		/**
+		 * The rules as SpanParsers, and the rule bodies memoized() runs on trimmed spans. They are created once per
+		 * parse, so invoking a rule allocates nothing but the expressions it builds.
+		 */
+		final private SpanParser addition = this::parseAddition, multiplication = this::parseMultiplication,
+				parenthetical = this::parseParenthetical;
+		final private SpanParser additionBody = (start, end) -> parseSymbol(start, end, '+', NEW_ADDITIVE, addition, multiplication);
+		final private SpanParser multiplicationBody = (start, end) -> parseSymbol(start, end, '*', NEW_MULTIPLICATIVE, multiplication, parenthetical);
+		final private SpanParser parentheticalBody = this::parseTrimmedParenthetical;
+		final private SpanParser terminalBody = this::parseTrimmedTerminal;
+
+		/**
+		 * Creates the state for parsing one input.
+		 * @param input the character sequence being parsed
+		 * @param memoize true to cache the result of every rule by its span of the input
+		 */
+		ParseContext(CharSequence input, boolean memoize) {
+			this.input = input;
+			this.memoize = memoize;
+			memo = memoize ? new HashMap<>() : null;
+		}
+
+		/**
+		 * Checks for the characters that are ignored between (and inside) symbols.
+		 * @param c character to check
+		 * @return true if c is a space
+		 */
+		private static boolean isSpace(char c) {
+			return c == ' ';
+		}
+
+		/**
+		 * Moves a span start past any leading spaces.
+		 * @param start start offset of the span (inclusive)
+		 * @param end end offset of the span (exclusive)
+		 * @return offset of the first non-space character, or end if there is none
+		 */
+		private int trimStart(int start, int end) {
+			while(start < end && isSpace(input.charAt(start)))
+				start++;
+			return start;
+		}
+
+		/**
+		 * Moves a span end before any trailing spaces.
+		 * @param start start offset of the span (inclusive)
+		 * @param end end offset of the span (exclusive)
+		 * @return offset just past the last non-space character, or start if there is none
+		 */
+		private int trimEnd(int start, int end) {
+			while(end > start && isSpace(input.charAt(end - 1)))
+				end--;
+			return end;
+		}
+
+		/**
+		 * Runs a rule on a span, or returns its remembered result if memoization is enabled.
+		 * The span is trimmed of surrounding spaces first, so the parser only ever sees trimmed spans.
+		 * @param rule the rule (ADDITION, MULTIPLICATION, PARENTHETICAL or TERMINAL)
+		 * @param start start offset of the span (inclusive)
+		 * @param end end offset of the span (exclusive)
+		 * @param parser computes the rule's result on the trimmed span on a memo miss
+		 * @return the expression, or null if invalid.
+		 */
+		private Expression memoized(int rule, int start, int end, SpanParser parser) {
+			final int trimmedStart = trimStart(start, end);
+			final int trimmedEnd = trimEnd(trimmedStart, end);
+			if(!memoize)
+				return parser.parse(trimmedStart, trimmedEnd);
+			start = trimmedStart;
+			end = trimmedEnd;
+			final Long key = ((long) rule << 62) | ((long) start << 31) | end;
+			final Expression cached = memo.get(key);
+			if(cached != null || memo.containsKey(key)) {
+				memoHits++;
+				return cached;
+			}
+			memoMisses++;
+			final Expression result = parser.parse(start, end);
+			memo.put(key, result);
 			return result;
-		return null;
+		}
+
+		/**
+		 * Finds the first occurrence of a character inside a span of the input.
+		 * @param target character to find
+		 * @param from offset to start searching from
+		 * @param end end offset of the span (exclusive)
+		 * @return offset of the character, or -1 if it does not occur before end
+		 */
+		private int indexOf(char target, int from, int end) {
+			for(int i = from; i < end; i++) {
+				if(input.charAt(i) == target)
+					return i;
+			}
+			return -1;
+		}
+
+		/**
+		 * Parse a given symbol (+ or *) using the recursive process on that text before that symbol and afterwards
+		 * @param start start offset of the span to split (inclusive)
+		 * @param end end offset of the span to split (exclusive)
+		 * @param target A char representing our desired split symbol (+ or *)
+		 * @param newExp A function that, when called, will generate a new classs of CompoundExpressison (differentiated for Additive or Multiplicative)
+		 * @param firstHalf The function to run on the span before the symbol
+		 * @param secondHalf The function to run on the span after the symbol
+		 * @return the expression, or null if invalid.
+		 */
+		private Expression parseSymbol(int start, int end, char target, Supplier<CompoundExpression> newExp, SpanParser firstHalf, SpanParser secondHalf) {
+			for(int i = indexOf(target, start, end); i < end - 1 && i > start; i = indexOf(target, i+1, end)) {
+				final Expression firstExp = firstHalf.parse(start, i);
+				final Expression secondExp = secondHalf.parse(i+1, end);
+				if(	firstExp != null && secondExp != null) {
+					final CompoundExpression result = newExp.get();
+					result.addSubexpression(firstExp);
+					result.addSubexpression(secondExp);
+					return result;
+				}
+			}
+			return secondHalf.parse(start, end);
+		}
+
+		/**
+		 * Parse the addition operator, or just jump to multiplication
+		 * @param start start offset of the span to parse (inclusive)
+		 * @param end end offset of the span to parse (exclusive)
+		 * @return Expression representing the span or null.
+		 */
+		private Expression parseAddition(int start, int end) {
+			return memoized(ADDITION, start, end, additionBody);
+		}
+		/**
+		 * Parse the multiplication operator, or just jump to parenthetical
+		 * @param start start offset of the span to parse (inclusive)
+		 * @param end end offset of the span to parse (exclusive)
+		 * @return Expression representing the span or null.
+		 */
+		private Expression parseMultiplication(int start, int end) {
+			return memoized(MULTIPLICATION, start, end, multiplicationBody);
+		}
+		/**
+		 * Parse the parenthetical operator, or just jump to literal
+		 * @param start start offset of the span to parse (inclusive)
+		 * @param end end offset of the span to parse (exclusive)
+		 * @return Expression representing the span or null.
+		 */
+		private Expression parseParenthetical(int start, int end) {
+			return memoized(PARENTHETICAL, start, end, parentheticalBody);
+		}
+		/**
+		 * The body of parseParenthetical, on a span already trimmed of spaces
+		 * @param trimmedStart start offset of the span to parse (inclusive)
+		 * @param trimmedEnd end offset of the span to parse (exclusive)
+		 * @return Expression representing the span or null.
+		 */
+		private Expression parseTrimmedParenthetical(int trimmedStart, int trimmedEnd) {
+			if(trimmedEnd - trimmedStart >= 3) {
+				final char firstChar = input.charAt(trimmedStart);
+				final char lastChar = input.charAt(trimmedEnd - 1);
+				if (firstChar == '(' && lastChar == ')') {
+					final Expression midSection = parseAddition(trimmedStart + 1, trimmedEnd - 1);
+					if(midSection != null) {
+						CompoundExpression result = new ParentheticalCompoundExpression();
+						result.addSubexpression(midSection);
+						return result;
+					}
+				}
+			}
+			return parseTerminal(trimmedStart, trimmedEnd);
+		}
+		/**
+		 * Parse literals (0-9, a-z), and confirm if the literal is valid.
+		 * @param start start offset of the span to parse (inclusive)
+		 * @param end end offset of the span to parse (exclusive)
+		 * @return Expression representing the span or null.
+		 */
+		private Expression parseTerminal(int start, int end) {
+			return memoized(TERMINAL, start, end, terminalBody);
+		}
+		/**
+		 * The body of parseTerminal, on a span already trimmed of spaces
+		 * @param trimmedStart start offset of the span to parse (inclusive)
+		 * @param trimmedEnd end offset of the span to parse (exclusive)
+		 * @return Expression representing the span or null.
+		 */
+		private Expression parseTrimmedTerminal(int trimmedStart, int trimmedEnd) {
+			final TerminalValue value = TerminalValue.parse(input, trimmedStart, trimmedEnd);
+			if(value == null)
+				return null;
+			return new TerminalExpression(value);
+		}
 	}
 
+	/**
+	 * A grammar rule applied to a [start, end) span of the input.
+	 */
+	private interface SpanParser {
+		Expression parse(int start, int end);
+	}
 }
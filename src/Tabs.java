@@ -0,0 +1,38 @@
+import java.io.IOException;
+
+/**
+ * Appends indentation for Expression.indent from a constant run of tabs, one slice of the run at a time rather
+ * than one tab at a time.
+ */
+final class Tabs {
+	/**
+	 * Run of tabs the slices are taken from
+	 */
+	private static final String RUN = "\t\t\t\t\t\t\t\t\t\t\t\t\t\t\t\t\t\t\t\t\t\t\t\t\t\t\t\t\t\t\t\t";
+
+	private Tabs () {
+	}
+
+	/**
+	 * Appends a number of tabs to a StringBuilder.
+	 * @param stringBuilder the StringBuilder to which to append tab characters
+	 * @param count the number of tabs to append
+	 */
+	static void append (StringBuilder stringBuilder, int count) {
+		for (int remaining = count; remaining > 0; remaining -= RUN.length()) {
+			stringBuilder.append(RUN, 0, Math.min(remaining, RUN.length()));
+		}
+	}
+
+	/**
+	 * Appends a number of tabs to an Appendable.
+	 * @param out the Appendable to which to append tab characters
+	 * @param count the number of tabs to append
+	 * @throws IOException if out cannot be written
+	 */
+	static void append (Appendable out, int count) throws IOException {
+		for (int remaining = count; remaining > 0; remaining -= RUN.length()) {
+			out.append(RUN, 0, Math.min(remaining, RUN.length()));
+		}
+	}
+}
@@ -1,40 +1,71 @@
-import javafx.geometry.Bounds;
-import javafx.scene.Node;
-import javafx.scene.control.Label;
+import java.io.IOException;
 
 public class TerminalExpression implements Expression {
-    private boolean isChar = false;
-    private int numericValue = 0;
-    private char characterValue = 0;
+    final private TerminalValue value;
     final private String stringValue;
     private CompoundExpression parent;
     boolean isValid = true;
-    final private boolean withJavaControls;
-    final private Label storedNode;
+    private boolean ghost = false;
+    private boolean focused = false;
 
     /**
      * Given a string value, determine if this is a numeric or symbolic literal
      * Differentiating these two doesn't seem useful in the requirements of this program, but it could be useful for accomplishing symbolic solves, etc.
      * @param value String representation of this terminal
      */
-    TerminalExpression(String value, boolean withJavaControls) {
-        stringValue = value;
-        this.withJavaControls = withJavaControls;
-
-        if (value.matches("\\d+")) {
-            numericValue = Integer.parseInt(value);
-        } else if (value.length() == 1 && value.matches("[a-z]")) {
-            isChar = true;
-            characterValue = value.charAt(0);
-
-        } else {
-            isValid = false;
-        }
-        if(withJavaControls)
-            storedNode = new ReferenceLabel(value, this);
-        else
-            storedNode = null;
+    TerminalExpression(String value) {
+        this(TerminalValue.parse(value, 0, value.length()), value);
     }
+
+    /**
+     * Creates a terminal around an already classified (and possibly shared) literal.
+     * @param value the literal's payload
+     */
+    TerminalExpression(TerminalValue value) {
+        this(value, value.getText());
+    }
+
+    private TerminalExpression(TerminalValue value, String stringValue) {
+        this.value = value;
+        this.stringValue = stringValue;
+        isValid = value != null;
+    }
+
+    /**
+     * Returns the literal's payload.
+     * @return the payload, or null if this terminal is not a valid literal
+     */
+    public TerminalValue getValue() {
+        return value;
+    }
+
+    /**
+     * Returns the literal exactly as it was written.
+     * @return the literal's text
+     */
+    public String getText() {
+        return stringValue;
+    }
+
+    /**
+     * Compares two terminals by the literal exactly as it was written.
+     * @param other the object to compare with
+     * @return true if other is a terminal with the same text
+     */
+    @Override
+    public boolean equals(Object other) {
+        return this == other || (other instanceof TerminalExpression && stringValue.equals(((TerminalExpression) other).stringValue));
+    }
+
+    /**
+     * Returns the structural hash of this terminal.
+     * @return hash of the literal's text
+     */
+    @Override
+    public int hashCode() {
+        return stringValue.hashCode();
+    }
+
     /**
      * Returns the expression's parent.
      *
@@ -62,20 +93,7 @@ public class TerminalExpression implements Expression {
      */
     @Override
     public Expression deepCopy() {
-        final TerminalExpression cloned = new TerminalExpression(stringValue, withJavaControls);
-        if(withJavaControls)
-            cloned.storedNode.setBorder(storedNode.getBorder());
-        return cloned;
-    }
-
-    /**
-     * Returns the JavaFX node associated with this expression.
-     *
-     * @return the JavaFX node associated with this expression.
-     */
-    @Override
-    public Node getNode() {
-        return storedNode;
+        return new TerminalExpression(value, stringValue);
     }
 
     /**
@@ -89,32 +107,64 @@ public class TerminalExpression implements Expression {
         //you can't flatten a terminal
     }
 
-    public Bounds computeBounds() {
-        return this.getNode().localToScene(this.getNode().getBoundsInLocal());
-    }
-
     /**
      * Creates a String representation by recursively printing out (using indentation) the
      * tree represented by this expression, starting at the specified indentation level.
      *
-     * @param stringBuilder the StringBuilder to use for building the String representation
-     * @param indentLevel   the indentation level (number of tabs from the left margin) at which to start
+     * @param out         the destination of the String representation
+     * @param indentLevel the indentation level (number of tabs from the left margin) at which to start
+     * @throws IOException if out cannot be written
      */
     @Override
-    public void convertToString(StringBuilder stringBuilder, int indentLevel) {
-       Expression.indent(stringBuilder, indentLevel);
-       stringBuilder.append(stringValue).append("\n");
+    public void convertToString(Appendable out, int indentLevel) throws IOException {
+       Expression.indent(out, indentLevel);
+       out.append(stringValue).append('\n');
+    }
+
+    /**
+     * Set this expression to be "ghosting".
+     * @param ghost true if ghosting should be enabled
+     */
+    public void setGhost(boolean ghost) {
+        this.ghost = ghost;
+        AbstractCompoundExpression.ghostChanged(this, ghost);
+    }
+
+    /**
+     * Returns whether this expression is "ghosting".
+     * @return true if ghosting
+     */
+    public boolean isGhost() {
+        return ghost;
+    }
+
+    /**
+     * Set this expression to be the focused expression.
+     * @param focused true if this expression should be focused
+     */
+    public void setFocused(boolean focused) {
+        this.focused = focused;
+        AbstractCompoundExpression.focusChanged(this, focused);
     }
+
+    /**
+     * Returns whether this expression is the focused expression.
+     * @return true if focused
+     */
+    public boolean isFocused() {
+        return focused;
+    }
+
     public Expression findGhost() {
-        if(!withJavaControls)
-            return null;
-        if(storedNode.getOpacity() == 0.5)
+        if(ghost)
             return this;
         return null;
     }
 
     @Override
     public Expression deepCopyWithPlacement(int placement, Expression search) {
-        return deepCopy();
+        final Expression cloned = deepCopy();
+        cloned.setFocused(focused);
+        return cloned;
     }
 }
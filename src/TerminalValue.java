@@ -0,0 +1,192 @@
+import java.math.BigInteger;
+
+/**
+ * The immutable payload of a TerminalExpression: the literal's text and what it denotes.
+ * The 26 variables and small integers are pooled, so trees that repeat the same literals share their payloads.
+ * Numbers are kept in a primitive long; only literals too large for a long fall back to a BigInteger.
+ */
+public final class TerminalValue {
+    private static final int POOLED_NUMBERS = 256;
+    private static final TerminalValue[] VARIABLES = new TerminalValue[26];
+    private static final TerminalValue[] NUMBERS = new TerminalValue[POOLED_NUMBERS];
+    static {
+        for (char c = 'a'; c <= 'z'; c++) {
+            VARIABLES[c - 'a'] = new TerminalValue(String.valueOf(c), true, 0, c);
+        }
+        for (int i = 0; i < POOLED_NUMBERS; i++) {
+            NUMBERS[i] = new TerminalValue(Integer.toString(i), false, i, (char) 0);
+        }
+    }
+
+    final private String text;
+    final private boolean isChar;
+    final private long numericValue;
+    final private BigInteger bigValue;
+    final private char characterValue;
+
+    private TerminalValue(String text, boolean isChar, long numericValue, char characterValue) {
+        this(text, isChar, numericValue, null, characterValue);
+    }
+
+    private TerminalValue(String text, boolean isChar, long numericValue, BigInteger bigValue, char characterValue) {
+        this.text = text;
+        this.isChar = isChar;
+        this.numericValue = numericValue;
+        this.bigValue = bigValue;
+        this.characterValue = characterValue;
+    }
+
+    /**
+     * Returns the shared payload for a variable.
+     * @param c the variable name, between 'a' and 'z'
+     * @return the pooled payload
+     */
+    static TerminalValue variable(char c) {
+        return VARIABLES[c - 'a'];
+    }
+
+    /**
+     * Returns the payload for a non-negative number written without leading zeros, pooled when it is small.
+     * @param number the number
+     * @return the payload
+     */
+    static TerminalValue valueOf(long number) {
+        if (number >= 0 && number < POOLED_NUMBERS)
+            return NUMBERS[(int) number];
+        return new TerminalValue(Long.toString(number), false, number, (char) 0);
+    }
+
+    /**
+     * Checks, without allocating, whether a span of characters is a literal ([0-9]+ or [a-z]).
+     * Spaces inside the span are ignored, the same way the parsers ignore them everywhere else.
+     * @param text characters to check
+     * @param start start offset of the span (inclusive)
+     * @param end end offset of the span (exclusive)
+     * @return true if the span is a valid literal
+     */
+    static boolean isLiteral(CharSequence text, int start, int end) {
+        int length = 0;
+        boolean allDigits = true;
+        boolean isLetter = false;
+        for (int i = start; i < end; i++) {
+            final char c = text.charAt(i);
+            if (c == ' ')
+                continue;
+            length++;
+            if (c < '0' || c > '9') {
+                allDigits = false;
+                isLetter = c >= 'a' && c <= 'z';
+            }
+        }
+        return length > 0 && (allDigits || (length == 1 && isLetter));
+    }
+
+    /**
+     * Classifies a span of characters as a literal, returning a pooled payload whenever possible.
+     * Spaces inside the span are ignored.
+     * @param text characters to classify
+     * @param start start offset of the span (inclusive)
+     * @param end end offset of the span (exclusive)
+     * @return the payload, or null if the span is not a literal
+     */
+    static TerminalValue parse(CharSequence text, int start, int end) {
+        if (!isLiteral(text, start, end))
+            return null;
+        int digits = 0;
+        long numericValue = 0;
+        boolean leadingZero = false;
+        boolean overflow = false;
+        boolean hasSpaces = false;
+        for (int i = start; i < end; i++) {
+            final char c = text.charAt(i);
+            if (c == ' ') {
+                hasSpaces = true;
+            } else if (c >= 'a' && c <= 'z') {
+                return VARIABLES[c - 'a'];
+            } else {
+                final int digit = c - '0';
+                if (digits > 0 && numericValue == 0)
+                    leadingZero = true;
+                if (numericValue > (Long.MAX_VALUE - digit) / 10)
+                    overflow = true;
+                else if (!overflow)
+                    numericValue = numericValue * 10 + digit;
+                digits++;
+            }
+        }
+        if (!leadingZero && !overflow && numericValue < POOLED_NUMBERS)
+            return NUMBERS[(int) numericValue];
+        final String literal;
+        if (hasSpaces) {
+            final StringBuilder builder = new StringBuilder(digits);
+            for (int i = start; i < end; i++) {
+                final char c = text.charAt(i);
+                if (c != ' ')
+                    builder.append(c);
+            }
+            literal = builder.toString();
+        } else {
+            literal = text.subSequence(start, end).toString();
+        }
+        if (overflow)
+            return new TerminalValue(literal, false, 0, new BigInteger(literal), (char) 0);
+        return new TerminalValue(literal, false, numericValue, (char) 0);
+    }
+
+    /**
+     * Returns the literal exactly as it was written (without spaces).
+     * @return the literal's text
+     */
+    public String getText() {
+        return text;
+    }
+
+    /**
+     * Returns whether this literal is a variable rather than a number.
+     * @return true for [a-z], false for [0-9]+
+     */
+    public boolean isVariable() {
+        return isChar;
+    }
+
+    /**
+     * Returns whether this numeric literal is too large for getNumericValue and must be read with getBigValue.
+     * @return true if the number does not fit in a long
+     */
+    public boolean isBig() {
+        return bigValue != null;
+    }
+
+    /**
+     * Returns the value of a numeric literal that fits in a long.
+     * @return the number, or 0 for variables and big numbers
+     */
+    public long getNumericValue() {
+        return numericValue;
+    }
+
+    /**
+     * Returns the value of a numeric literal of any size.
+     * @return the number, or null for variables
+     */
+    public BigInteger getBigValue() {
+        if (isChar)
+            return null;
+        if (bigValue != null)
+            return bigValue;
+        return BigInteger.valueOf(numericValue);
+    }
+
+    /**
+     * Returns the name of a variable literal.
+     * @return the variable, or 0 for numbers
+     */
+    public char getCharacterValue() {
+        return characterValue;
+    }
+
+    @Override
+    public String toString() {
+        return text;
+    }
+}
@@ -0,0 +1,213 @@
+/**
+ * An ExpressionParser for the same grammar as SimpleExpressionParser:
+ * E := A | X
+ * A := A+M | M
+ * M := M*M | X
+ * X := (E) | L
+ * L := [0-9]+ | [a-z]
+ * Instead of trying every possible split of the input, the string is tokenized once and then parsed by
+ * recursive descent, so every token is visited a constant number of times. Left-recursive rules are parsed as
+ * loops, which builds the n-ary (already flattened) sums and products directly.
+ */
+public class TokenizingExpressionParser implements ExpressionParser {
+	private static final byte NUMBER = 0, VARIABLE = 1, PLUS = 2, TIMES = 3, OPEN = 4, CLOSE = 5, END = 6;
+
+	/**
+	 * Attempts to create an expression tree -- flattened as much as possible -- from the specified String.
+	 * Throws a ExpressionParseException if the specified string cannot be parsed; its error offset is the
+	 * position of the offending character in the original string.
+	 * @param str the string to parse into an expression tree
+	 * @param withJavaFXControls retained for compatibility; the tree is always headless (render it with an ExpressionView)
+	 * @return the Expression object representing the parsed expression tree
+	 */
+	public Expression parse (String str, boolean withJavaFXControls) throws ExpressionParseException {
+		return parse(str, 0, str.length(), withJavaFXControls);
+	}
+
+	/**
+	 * Parses the [start, end) span of a character sequence without copying it.
+	 * @param input the character sequence containing the expression
+	 * @param start start offset of the expression (inclusive)
+	 * @param end end offset of the expression (exclusive)
+	 * @param withJavaFXControls retained for compatibility; the tree is always headless (render it with an ExpressionView)
+	 * @return the Expression object representing the parsed expression tree
+	 */
+	public Expression parse (CharSequence input, int start, int end, boolean withJavaFXControls) throws ExpressionParseException {
+		final Expression expression = new TokenStream(input, start, end).parseExpression();
+
+		// Flatten the expression before returning
+		expression.flatten();
+		return expression;
+	}
+
+	/**
+	 * Per-call parsing state: the token arrays for one input and the current read position.
+	 */
+	private static class TokenStream {
+		final private CharSequence input;
+		final private int end;
+		final private byte[] kinds;
+		final private int[] offsets;
+		final private TerminalValue[] literals;
+		private int count = 0;
+		private int position = 0;
+
+		/**
+		 * Tokenizes the [start, end) span of the input in a single left-to-right scan.
+		 * @param input characters to tokenize
+		 * @param start start offset of the span (inclusive)
+		 * @param end end offset of the span (exclusive)
+		 * @throws ExpressionParseException if the input contains a character outside of the grammar
+		 */
+		TokenStream(CharSequence input, int start, int end) throws ExpressionParseException {
+			this.input = input;
+			this.end = end;
+			final int capacity = end - start + 1;
+			kinds = new byte[capacity];
+			offsets = new int[capacity];
+			literals = new TerminalValue[capacity];
+			int i = start;
+			while(i < end) {
+				final char c = input.charAt(i);
+				if(c == ' ') {
+					i++;
+				} else if(c >= '0' && c <= '9') {
+					i = scanNumber(i);
+				} else if(c >= 'a' && c <= 'z') {
+					add(VARIABLE, i, TerminalValue.variable(c));
+					i++;
+				} else if(c == '+') {
+					add(PLUS, i++, null);
+				} else if(c == '*') {
+					add(TIMES, i++, null);
+				} else if(c == '(') {
+					add(OPEN, i++, null);
+				} else if(c == ')') {
+					add(CLOSE, i++, null);
+				} else {
+					throw new ExpressionParseException("Unexpected character '" + c + "' at offset " + i, i);
+				}
+			}
+			add(END, end, null);
+		}
+
+		/**
+		 * Scans a run of digits starting at the specified offset. SimpleExpressionParser strips every space before
+		 * parsing, so digits separated only by spaces still form a single literal here.
+		 * @param start offset of the first digit
+		 * @return offset just past the literal
+		 */
+		private int scanNumber(int start) {
+			int i = start;
+			int lastDigit = start;
+			while(i < end) {
+				final char c = input.charAt(i);
+				if(c >= '0' && c <= '9') {
+					lastDigit = i;
+				} else if(c != ' ') {
+					break;
+				}
+				i++;
+			}
+			add(NUMBER, start, TerminalValue.parse(input, start, lastDigit + 1));
+			return lastDigit + 1;
+		}
+
+		/**
+		 * Appends a token to the stream.
+		 * @param kind token kind
+		 * @param offset offset of the token in the original input
+		 * @param literal payload of a NUMBER or VARIABLE token, otherwise null
+		 */
+		private void add(byte kind, int offset, TerminalValue literal) {
+			kinds[count] = kind;
+			offsets[count] = offset;
+			literals[count] = literal;
+			count++;
+		}
+
+		/**
+		 * Parses the whole token stream as an expression (E).
+		 * @return the parsed (not yet flattened) Expression
+		 * @throws ExpressionParseException if the tokens do not form an expression
+		 */
+		Expression parseExpression() throws ExpressionParseException {
+			final Expression expression = parseAddition();
+			if(kinds[position] != END)
+				throw unexpected();
+			return expression;
+		}
+
+		/**
+		 * Parses A := A+M | M as a list of one or more M separated by +
+		 * @return Expression representing the sum
+		 * @throws ExpressionParseException if a term is missing
+		 */
+		private Expression parseAddition() throws ExpressionParseException {
+			final Expression first = parseMultiplication();
+			if(kinds[position] != PLUS)
+				return first;
+			final CompoundExpression result = new AdditiveCompoundExpression();
+			result.addSubexpression(first);
+			while(kinds[position] == PLUS) {
+				position++;
+				result.addSubexpression(parseMultiplication());
+			}
+			return result;
+		}
+
+		/**
+		 * Parses M := M*M | X as a list of one or more X separated by *
+		 * @return Expression representing the product
+		 * @throws ExpressionParseException if a factor is missing
+		 */
+		private Expression parseMultiplication() throws ExpressionParseException {
+			final Expression first = parseParenthetical();
+			if(kinds[position] != TIMES)
+				return first;
+			final CompoundExpression result = new MultiplicativeCompoundExpression();
+			result.addSubexpression(first);
+			while(kinds[position] == TIMES) {
+				position++;
+				result.addSubexpression(parseParenthetical());
+			}
+			return result;
+		}
+
+		/**
+		 * Parses X := (E) | L
+		 * @return Expression representing the parenthetical or literal
+		 * @throws ExpressionParseException if neither can be read at the current token
+		 */
+		private Expression parseParenthetical() throws ExpressionParseException {
+			final byte kind = kinds[position];
+			if(kind == OPEN) {
+				position++;
+				final Expression inner = parseAddition();
+				if(kinds[position] != CLOSE)
+					throw unexpected();
+				position++;
+				final CompoundExpression result = new ParentheticalCompoundExpression();
+				result.addSubexpression(inner);
+				return result;
+			}
+			if(kind == NUMBER || kind == VARIABLE) {
+				final Expression result = new TerminalExpression(literals[position]);
+				position++;
+				return result;
+			}
+			throw unexpected();
+		}
+
+		/**
+		 * Builds the exception for the token at the current position.
+		 * @return exception describing the unexpected token
+		 */
+		private ExpressionParseException unexpected() {
+			final int offset = offsets[position];
+			if(kinds[position] == END)
+				return new ExpressionParseException("Unexpected end of expression at offset " + offset, offset);
+			return new ExpressionParseException("Unexpected '" + input.charAt(offset) + "' at offset " + offset, offset);
+		}
+	}
+}
@@ -0,0 +1,97 @@
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+import java.util.Random;
+
+/**
+ * Checks that TokenizingExpressionParser builds the same trees as SimpleExpressionParser.
+ */
+public class TokenizingExpressionParserTester {
+	private ExpressionParser _parser;
+	private ExpressionParser _reference;
+
+	@Before
+	/**
+	 * Instantiates the parser under test and the reference parser
+	 */
+	public void setUp () {
+		_parser = new TokenizingExpressionParser();
+		_reference = new SimpleExpressionParser();
+	}
+
+	@Test
+	/**
+	 * Verifies that the handwritten examples parse into the same trees as the reference parser.
+	 */
+	public void testMatchesReference () throws ExpressionParseException {
+		final String[] expressions = {
+			"a+b", "13*x", "4*(z+5*x)", "1+2+3", "(x+(x)+(x+x)+x)", "2*x+3*y+4*z+(7+6*z)",
+			"((a))", "(((a+b)))*c", "a*(b*c)*d", "1 2 + x", " ( a ) "
+		};
+		for(String expressionStr : expressions) {
+			assertEquals(expressionStr, _reference.parse(expressionStr, false).convertToString(0),
+					_parser.parse(expressionStr, false).convertToString(0));
+		}
+	}
+
+	@Test
+	/**
+	 * Verifies that random short strings over the grammar's alphabet are accepted and rejected exactly
+	 * like the reference parser, and produce the same trees when accepted.
+	 */
+	public void testRandomMatchesReference () {
+		final String alphabet = "a1+*() ";
+		final Random random = new Random(2103);
+		for(int n = 0; n < 20000; n++) {
+			final StringBuilder builder = new StringBuilder();
+			final int length = 1 + random.nextInt(9);
+			for(int i = 0; i < length; i++)
+				builder.append(alphabet.charAt(random.nextInt(alphabet.length())));
+			final String expressionStr = builder.toString();
+			assertEquals(expressionStr, parseOrNull(_reference, expressionStr), parseOrNull(_parser, expressionStr));
+		}
+	}
+
+	@Test
+	/**
+	 * Verifies that the reported error offset points at the offending character.
+	 */
+	public void testErrorOffset () {
+		assertEquals(4, errorOffset("1+2+"));
+		assertEquals(3, errorOffset("((()))"));
+		assertEquals(1, errorOffset("()()"));
+		assertEquals(4, errorOffset("a + # b"));
+		assertEquals(1, errorOffset("ab"));
+		assertEquals(0, errorOffset(""));
+	}
+
+	@Test
+	/**
+	 * Verifies that long inputs, which would take the backtracking parser exponential time, parse quickly.
+	 */
+	public void testLargeExpression () throws ExpressionParseException {
+		final StringBuilder builder = new StringBuilder("x");
+		for(int i = 0; i < 5000; i++)
+			builder.append("+(").append(i).append("*y)");
+		final AbstractCompoundExpression expression = (AbstractCompoundExpression) _parser.parse(builder.toString(), false);
+		assertEquals(5001, expression.getSubexpressions().size());
+	}
+
+	private static String parseOrNull (ExpressionParser parser, String str) {
+		try {
+			return parser.parse(str, false).convertToString(0);
+		} catch (ExpressionParseException epe) {
+			return null;
+		}
+	}
+
+	private int errorOffset (String str) {
+		try {
+			_parser.parse(str, false);
+		} catch (ExpressionParseException epe) {
+			return epe.getErrorOffset();
+		}
+		fail("Expected an ExpressionParseException for " + str);
+		return -1;
+	}
+}